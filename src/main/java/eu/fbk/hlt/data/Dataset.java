@@ -10,29 +10,48 @@ import java.util.zip.GZIPInputStream;
  * @author Yaroslav Nechaev (remper@me.com)
  */
 public abstract class Dataset {
+    protected static final int BUFFER_SIZE = 1 << 16;
+
     protected DatasetMetaInfo info;
     protected File source;
 
     public Dataset(DatasetMetaInfo info) throws URISyntaxException {
+        this(info, true);
+    }
+
+    /**
+     * @param parse whether to parse immediately. Subclasses that need their own fields
+     *              initialized before parsing should pass false and call parse() themselves
+     */
+    protected Dataset(DatasetMetaInfo info, boolean parse) throws URISyntaxException {
         assert info.isOffline;
         this.info = info;
         this.source = new File(this.info.location.toURI());
-        parse();
+        if (parse) {
+            parse();
+        }
     }
 
     public abstract void parse();
 
-    protected LineNumberReader getReader() throws IOException {
+    /**
+     * Raw (decompressed) byte stream of the dataset
+     */
+    protected InputStream getStream() throws IOException {
         InputStream stream = new FileInputStream(source);
         switch (this.info.compression) {
             case GZ:
-                stream = new GZIPInputStream(stream);
+                stream = new GZIPInputStream(stream, BUFFER_SIZE);
                 break;
             case PLAIN:
                 //No need to modify stream here
                 break;
         }
-        return new LineNumberReader(new InputStreamReader(stream));
+        return stream;
+    }
+
+    protected LineNumberReader getReader() throws IOException {
+        return new LineNumberReader(new InputStreamReader(getStream()));
     }
 
     public DatasetMetaInfo getInfo() {
@@ -61,6 +61,21 @@ public class DatasetRepository {
     }
 
     public Dataset load(String name) throws Exception {
+        return instantiateDataset(fetch(name));
+    }
+
+    /**
+     * Load the dataset overriding the type declared in the repository
+     * (e.g. to load "wordvectors" as "mappedwordvectors" or "quantizedwordvectors")
+     */
+    public Dataset load(String name, String type) throws Exception {
+        return instantiateDataset(fetch(name), type);
+    }
+
+    /**
+     * Make sure the dataset is available offline, downloading it if needed
+     */
+    public DatasetMetaInfo fetch(String name) throws Exception {
         if (!index.containsKey(name)) {
             //TODO: search the storage folder, if something comes up — add to the repository
             throw new Exception("Dataset \""+name+"\" hasn't been found in the repository");
@@ -84,22 +99,32 @@ public class DatasetRepository {
             }
             logger.info("Download finished. "+(watch.click()/1000)+"s elapsed");
         }
-        return instantiateDataset(location);
+        return location;
     }
 
     private Dataset instantiateDataset(DatasetMetaInfo location) throws Exception {
+        return instantiateDataset(location, location.type);
+    }
+
+    private Dataset instantiateDataset(DatasetMetaInfo location, String type) throws Exception {
         Dataset target;
         logger.info("Starting loading the dataset "+location.name);
         Stopwatch watch = Stopwatch.start();
-        switch (location.type) {
+        switch (type) {
             case "wordvectors":
                 target = new WordVectors(location);
                 break;
+            case "mappedwordvectors":
+                target = new MappedWordVectors(location);
+                break;
+            case "quantizedwordvectors":
+                target = new QuantizedWordVectors(location);
+                break;
             case "labeledsentences":
                 target = new LabeledSentences(location);
                 break;
             default:
-                throw new Exception("The type \""+location.type+"\" is not supported yet");
+                throw new Exception("The type \""+type+"\" is not supported yet");
         }
 
         logger.info("Loaded dataset \""+location.name+"\". "+(watch.click()/1000)+"s elapsed");
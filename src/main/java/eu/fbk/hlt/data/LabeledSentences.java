@@ -9,7 +9,9 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -36,15 +38,9 @@ public class LabeledSentences extends Dataset implements Closeable {
     public ArrayList<Sentence> readAll() {
         //Parse the input file
         ArrayList<Sentence> sentences = Generics.newArrayList();
-        try (LineNumberReader reader = getReader()) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                //Sanitizing the the word
-                Sentence sentence = Sentence.fromString(line);
-                if (sentence == null) {
-                    continue;
-                }
-                sentences.add(sentence);
+        try {
+            for (List<Sentence> chunk : new ParallelLineParser().parse(getStream(), LabeledSentences::parseChunk)) {
+                sentences.addAll(chunk);
             }
 
             logger.info("Parsed "+sentences.size()+" sentences");
@@ -54,6 +50,35 @@ public class LabeledSentences extends Dataset implements Closeable {
         return sentences;
     }
 
+    /**
+     * Parse a line-aligned part of the file (same line semantics as the reader)
+     */
+    protected static List<Sentence> parseChunk(byte[] buffer, int from, int to) {
+        List<Sentence> sentences = new ArrayList<>();
+        int start = from;
+        for (int pos = from; pos < to; pos++) {
+            if (buffer[pos] != '\n') {
+                continue;
+            }
+            addLine(sentences, buffer, start, pos);
+            start = pos + 1;
+        }
+        if (start < to) {
+            addLine(sentences, buffer, start, to);
+        }
+        return sentences;
+    }
+
+    private static void addLine(List<Sentence> sentences, byte[] buffer, int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        Sentence sentence = Sentence.fromString(new String(buffer, start, end - start, Charset.defaultCharset()));
+        if (sentence != null) {
+            sentences.add(sentence);
+        }
+    }
+
     public void reopen() {
         try {
             close();
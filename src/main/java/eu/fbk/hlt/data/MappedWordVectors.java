@@ -0,0 +1,165 @@
+package eu.fbk.hlt.data;
+
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Word vectors that are served straight from a memory-mapped binary file
+ * The binary file is created once from the textual dataset and stored next to it
+ * The format is
+ *  MAGIC VERSION SIZE DIM SOURCE_LENGTH SOURCE_MODIFIED
+ *  SIZE x DIM float32 matrix (row-major)
+ *  serialized Vocabulary (words in the row order and the perfect hash over them)
+ *
+ * The matrix stays off-heap and is shared between processes by the OS page cache,
+ *  the vocabulary is read as is without rebuilding the hash.
+ * The length and the modification time of the textual dataset are kept in the header,
+ *  so the binary file is converted again if the dataset changes
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class MappedWordVectors extends WordVectors {
+    final static Logger logger = LoggerFactory.getLogger(MappedWordVectors.class);
+
+    public static final int MAGIC = 0x57564543;
+    public static final int VERSION = 3;
+    public static final String EXTENSION = ".bin";
+    protected static final int HEADER_SIZE = 32;
+
+    protected FloatBuffer[] segments;
+    protected int rowsPerSegment;
+
+    public MappedWordVectors(DatasetMetaInfo info) throws URISyntaxException {
+        super(info);
+    }
+
+    @Override
+    public void parse() {
+        File binary = getBinaryLocation();
+        try {
+            if (!hasValidHeader(binary, source)) {
+                logger.info("Binary representation is missing or outdated. Converting \""+info.name+"\" to "+binary.getName());
+                super.parse();
+                convert(this, binary);
+                matrix = null;
+            }
+            map(binary);
+            logger.info("Mapped "+size+" words from "+binary.getName());
+        } catch (IOException e) {
+            logger.error("Can't map the binary file: "+e.getClass().getSimpleName()+" "+e.getMessage());
+        }
+    }
+
+    public File getBinaryLocation() {
+        return new File(source.getPath() + EXTENSION);
+    }
+
+    /**
+     * Write the in-heap word vectors to the binary format
+     */
+    public static void convert(WordVectors vectors, File target) throws IOException {
+        int dim = vectors.getDim();
+        int size = vectors.size();
+        File temp = new File(target.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(dim);
+            out.writeLong(vectors.source.length());
+            out.writeLong(vectors.source.lastModified());
+            double[] vector = new double[dim];
+            for (int id = 0; id < size; id++) {
+                vectors.copyInto(id, vector, 0);
+                for (int i = 0; i < dim; i++) {
+                    out.writeFloat((float) vector[i]);
+                }
+            }
+            vectors.getVocabulary().write(out);
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Can't replace the binary file "+target);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Can't move the binary file to "+target);
+        }
+    }
+
+    /**
+     * @return true if the binary file has the current format and was converted from the current version of the source
+     */
+    protected static boolean hasValidHeader(File binary, File source) {
+        if (!binary.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(binary))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            in.readInt();
+            in.readInt();
+            return in.readLong() == source.length() && in.readLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    protected void map(File binary) throws IOException {
+        long matrixSize;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binary)))) {
+            in.readInt();
+            in.readInt();
+            size = in.readInt();
+            dim = in.readInt();
+            in.readLong();
+            in.readLong();
+
+            //Reading the vocabulary that follows the matrix
+            matrixSize = (long) size * dim * 4;
+            long toSkip = matrixSize;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new EOFException("The binary file is truncated");
+                }
+                toSkip -= skipped;
+            }
+            index = Vocabulary.read(in);
+        }
+
+        //A single mapping can't exceed 2GB, so the matrix is split into row-aligned segments
+        rowsPerSegment = Math.max(1, Integer.MAX_VALUE / (dim * 4));
+        int segmentCount = size == 0 ? 0 : (size - 1) / rowsPerSegment + 1;
+        segments = new FloatBuffer[segmentCount];
+        try (RandomAccessFile file = new RandomAccessFile(binary, "r"); FileChannel channel = file.getChannel()) {
+            for (int i = 0; i < segmentCount; i++) {
+                long offset = HEADER_SIZE + (long) i * rowsPerSegment * dim * 4;
+                long length = Math.min((long) rowsPerSegment * dim * 4, matrixSize - (offset - HEADER_SIZE));
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                segments[i] = buffer.asFloatBuffer();
+            }
+        }
+        zeroes = Nd4j.zeros(dim);
+    }
+
+    @Override
+    public void copyInto(int id, double[] dst, int offset) {
+        //Before the mapping is established (during conversion) the in-heap matrix is used
+        if (id < 0 || segments == null) {
+            super.copyInto(id, dst, offset);
+            return;
+        }
+        FloatBuffer segment = segments[id / rowsPerSegment];
+        int base = (id % rowsPerSegment) * dim;
+        for (int i = 0; i < dim; i++) {
+            dst[offset + i] = segment.get(base + i);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package eu.fbk.hlt.data;
+
+import eu.fbk.hlt.sentiment.util.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate nearest neighbour (cosine similarity) index over word vectors based on a random projection forest
+ * Every node of a tree splits the words by two random pivot words: the word goes to the side of the closest pivot
+ * A query descends all the trees at once, following the most promising branches first (by margin),
+ *  collects the candidates from the leaves and ranks them by the exact similarity
+ *
+ * The forest is persisted to the storage directory, so it's built only once for every set of embeddings
+ *  (the file is named and tagged by the version of the embeddings, so changed embeddings get a new index)
+ * Queries are thread-safe and can be run in parallel
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class NearestNeighbours {
+    final static Logger logger = LoggerFactory.getLogger(NearestNeighbours.class);
+
+    public static final int MAGIC = 0x414E4E46;
+    public static final int VERSION = 2;
+    public static final String EXTENSION = ".ann";
+    public static final int DEFAULT_TREES = 16;
+    public static final int DEFAULT_LEAF_SIZE = 32;
+    //Number of candidates checked per neighbour per tree
+    public static final int DEFAULT_SEARCH_FACTOR = 4;
+
+    protected final WordVectors vectors;
+    protected final float[] norms;
+    protected Tree[] trees;
+    protected int leafSize;
+    protected int searchFactor = DEFAULT_SEARCH_FACTOR;
+
+    protected NearestNeighbours(WordVectors vectors) {
+        this.vectors = vectors;
+        this.norms = new float[vectors.size()];
+        double[] vector = new double[vectors.getDim()];
+        for (int id = 0; id < norms.length; id++) {
+            vectors.copyInto(id, vector, 0);
+            norms[id] = (float) Math.sqrt(dot(vector, vector));
+        }
+    }
+
+    /**
+     * Load the index of the embeddings from the storage or build it (and store it) if it doesn't exist
+     */
+    public static NearestNeighbours load(WordVectors vectors, Configuration configuration) throws IOException {
+        String fingerprint = Long.toHexString(vectors.getVocabulary().fingerprint());
+        File location = new File(configuration.getStorage(), vectors.getInfo().name + "." + fingerprint + EXTENSION);
+        NearestNeighbours index = new NearestNeighbours(vectors);
+        if (location.exists() && index.read(location)) {
+            logger.info("Loaded the nearest neighbours index from "+location.getName());
+            return index;
+        }
+        logger.info("Nearest neighbours index hasn't been found. Building it for \""+vectors.getInfo().name+"\"");
+        index.build(DEFAULT_TREES, DEFAULT_LEAF_SIZE, new Random());
+        index.write(location);
+        return index;
+    }
+
+    /**
+     * Build the forest (trees are built in parallel)
+     */
+    public void build(int treeCount, int leafSize, Random random) {
+        Stopwatch watch = Stopwatch.start();
+        this.leafSize = leafSize;
+        long[] seeds = new long[treeCount];
+        for (int i = 0; i < treeCount; i++) {
+            seeds[i] = random.nextLong();
+        }
+        trees = IntStream.range(0, treeCount).parallel()
+            .mapToObj(i -> buildTree(new Random(seeds[i])))
+            .toArray(Tree[]::new);
+        logger.info("Built "+treeCount+" trees over "+vectors.size()+" words. "+((double)watch.click()/1000)+"s");
+    }
+
+    protected Tree buildTree(Random random) {
+        int size = vectors.size();
+        Tree tree = new Tree(size / Math.max(1, leafSize / 2) + 1);
+        tree.items = new int[size];
+        for (int i = 0; i < size; i++) {
+            tree.items[i] = i;
+        }
+        double[] first = new double[vectors.getDim()];
+        double[] second = new double[vectors.getDim()];
+        double[] vector = new double[vectors.getDim()];
+        tree.root = split(tree, 0, size, random, first, second, vector);
+        tree.trim();
+        return tree;
+    }
+
+    /**
+     * Recursively split the range of items
+     * @return index of the node, negative for leaves: -(leaf + 1)
+     */
+    protected int split(Tree tree, int from, int to, Random random, double[] first, double[] second, double[] vector) {
+        if (to - from <= leafSize) {
+            return -(tree.addLeaf(from, to) + 1);
+        }
+        int pivotA = tree.items[from + random.nextInt(to - from)];
+        int pivotB = tree.items[from + random.nextInt(to - from)];
+        load(pivotA, first);
+        load(pivotB, second);
+
+        //Partitioning the items by the closest pivot
+        int middle = from;
+        int end = to;
+        while (middle < end) {
+            load(tree.items[middle], vector);
+            if (dot(vector, first) >= dot(vector, second)) {
+                middle++;
+            } else {
+                int swap = tree.items[middle];
+                tree.items[middle] = tree.items[--end];
+                tree.items[end] = swap;
+            }
+        }
+        //Degenerate split (duplicate vectors or the same pivot twice)
+        if (middle == from || middle == to) {
+            middle = (from + to) >>> 1;
+        }
+
+        int node = tree.addNode(pivotA, pivotB);
+        int left = split(tree, from, middle, random, first, second, vector);
+        int right = split(tree, middle, to, random, first, second, vector);
+        tree.left[node] = left;
+        tree.right[node] = right;
+        return node;
+    }
+
+    public List<Neighbour> nearest(String word, int k) {
+        int id = vectors.idOf(word);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        double[] vector = new double[vectors.getDim()];
+        vectors.copyInto(id, vector, 0);
+        //Skipping the word itself
+        return nearest(vector, k + 1).stream()
+            .filter(neighbour -> neighbour.id != id)
+            .limit(k)
+            .collect(Collectors.toList());
+    }
+
+    public List<Neighbour> nearest(double[] query, int k) {
+        double[] vector = new double[vectors.getDim()];
+        double[] other = new double[vectors.getDim()];
+        double queryNorm = Math.sqrt(dot(query, query));
+        if (queryNorm == 0.0 || trees == null || vectors.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        //Best-first descent of all the trees, the queue is ordered by the margin of the branch
+        int budget = k * trees.length * searchFactor;
+        PriorityQueue<Branch> queue = new PriorityQueue<>();
+        for (Tree tree : trees) {
+            queue.add(new Branch(tree, tree.root, Double.POSITIVE_INFINITY));
+        }
+        Set<Integer> candidates = new HashSet<>();
+        while (!queue.isEmpty() && candidates.size() < budget) {
+            Branch branch = queue.poll();
+            Tree tree = branch.tree;
+            int node = branch.node;
+            if (node < 0) {
+                int leaf = -node - 1;
+                for (int i = tree.leafFrom[leaf]; i < tree.leafTo[leaf]; i++) {
+                    candidates.add(tree.items[i]);
+                }
+                continue;
+            }
+            load(tree.pivotA[node], vector);
+            load(tree.pivotB[node], other);
+            double margin = (dot(query, vector) - dot(query, other)) / queryNorm;
+            queue.add(new Branch(tree, margin >= 0 ? tree.left[node] : tree.right[node], Math.min(branch.priority, Math.abs(margin))));
+            queue.add(new Branch(tree, margin >= 0 ? tree.right[node] : tree.left[node], Math.min(branch.priority, -Math.abs(margin))));
+        }
+
+        //Exact ranking of the candidates
+        PriorityQueue<Neighbour> best = new PriorityQueue<>(k + 1, Comparator.comparingDouble(neighbour -> neighbour.similarity));
+        for (int id : candidates) {
+            if (norms[id] == 0.0f) {
+                continue;
+            }
+            vectors.copyInto(id, vector, 0);
+            double similarity = dot(query, vector) / (queryNorm * norms[id]);
+            if (best.size() < k || similarity > best.peek().similarity) {
+                best.add(new Neighbour(id, vectors.wordOf(id), similarity));
+                if (best.size() > k) {
+                    best.poll();
+                }
+            }
+        }
+        List<Neighbour> result = new ArrayList<>(best);
+        result.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+        return result;
+    }
+
+    /**
+     * Run the queries in parallel
+     */
+    public Map<String, List<Neighbour>> nearest(Collection<String> words, int k) {
+        return words.parallelStream()
+            .distinct()
+            .collect(Collectors.toConcurrentMap(word -> word, word -> nearest(word, k)));
+    }
+
+    /**
+     * Candidates checked per neighbour per tree. Larger values give better recall for slower queries
+     */
+    public void setSearchFactor(int searchFactor) {
+        this.searchFactor = searchFactor;
+    }
+
+    private void load(int id, double[] vector) {
+        vectors.copyInto(id, vector, 0);
+        float norm = norms[id];
+        if (norm > 0.0f) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double result = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    public void write(File location) throws IOException {
+        File temp = new File(location.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(vectors.getVersion());
+            out.writeInt(leafSize);
+            out.writeInt(trees.length);
+            for (Tree tree : trees) {
+                tree.write(out);
+            }
+        }
+        if (location.exists() && !location.delete()) {
+            throw new IOException("Can't replace the index file "+location);
+        }
+        if (!temp.renameTo(location)) {
+            throw new IOException("Can't move the index file to "+location);
+        }
+    }
+
+    /**
+     * @return false if the file is not compatible with the loaded embeddings
+     */
+    protected boolean read(File location) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            if (!in.readUTF().equals(vectors.getVersion())) {
+                logger.warn("The index in "+location.getName()+" was built for different embeddings");
+                return false;
+            }
+            leafSize = in.readInt();
+            trees = new Tree[in.readInt()];
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = Tree.read(in);
+            }
+        }
+        return true;
+    }
+
+    public static class Neighbour {
+        public final int id;
+        public final String word;
+        public final double similarity;
+
+        public Neighbour(int id, String word, double similarity) {
+            this.id = id;
+            this.word = word;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public String toString() {
+            return word + " (" + String.format("%.4f", similarity) + ")";
+        }
+    }
+
+    private static class Branch implements Comparable<Branch> {
+        final Tree tree;
+        final int node;
+        final double priority;
+
+        Branch(Tree tree, int node, double priority) {
+            this.tree = tree;
+            this.node = node;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Branch other) {
+            return Double.compare(other.priority, priority);
+        }
+    }
+
+    /**
+     * Flat representation of a single tree
+     */
+    protected static class Tree {
+        protected int root;
+        protected int nodes;
+        protected int[] pivotA;
+        protected int[] pivotB;
+        protected int[] left;
+        protected int[] right;
+        protected int leaves;
+        protected int[] leafFrom;
+        protected int[] leafTo;
+        protected int[] items;
+
+        protected Tree(int capacity) {
+            pivotA = new int[capacity];
+            pivotB = new int[capacity];
+            left = new int[capacity];
+            right = new int[capacity];
+            leafFrom = new int[capacity];
+            leafTo = new int[capacity];
+        }
+
+        protected int addNode(int a, int b) {
+            if (nodes == pivotA.length) {
+                pivotA = Arrays.copyOf(pivotA, nodes * 2);
+                pivotB = Arrays.copyOf(pivotB, nodes * 2);
+                left = Arrays.copyOf(left, nodes * 2);
+                right = Arrays.copyOf(right, nodes * 2);
+            }
+            pivotA[nodes] = a;
+            pivotB[nodes] = b;
+            return nodes++;
+        }
+
+        protected int addLeaf(int from, int to) {
+            if (leaves == leafFrom.length) {
+                leafFrom = Arrays.copyOf(leafFrom, leaves * 2);
+                leafTo = Arrays.copyOf(leafTo, leaves * 2);
+            }
+            leafFrom[leaves] = from;
+            leafTo[leaves] = to;
+            return leaves++;
+        }
+
+        protected void trim() {
+            pivotA = Arrays.copyOf(pivotA, nodes);
+            pivotB = Arrays.copyOf(pivotB, nodes);
+            left = Arrays.copyOf(left, nodes);
+            right = Arrays.copyOf(right, nodes);
+            leafFrom = Arrays.copyOf(leafFrom, leaves);
+            leafTo = Arrays.copyOf(leafTo, leaves);
+        }
+
+        protected void write(DataOutput out) throws IOException {
+            out.writeInt(root);
+            writeArray(out, pivotA);
+            writeArray(out, pivotB);
+            writeArray(out, left);
+            writeArray(out, right);
+            writeArray(out, leafFrom);
+            writeArray(out, leafTo);
+            writeArray(out, items);
+        }
+
+        protected static Tree read(DataInput in) throws IOException {
+            Tree tree = new Tree(0);
+            tree.root = in.readInt();
+            tree.pivotA = readArray(in);
+            tree.pivotB = readArray(in);
+            tree.left = readArray(in);
+            tree.right = readArray(in);
+            tree.leafFrom = readArray(in);
+            tree.leafTo = readArray(in);
+            tree.items = readArray(in);
+            tree.nodes = tree.pivotA.length;
+            tree.leaves = tree.leafFrom.length;
+            return tree;
+        }
+
+        private static void writeArray(DataOutput out, int[] array) throws IOException {
+            out.writeInt(array.length);
+            for (int value : array) {
+                out.writeInt(value);
+            }
+        }
+
+        private static int[] readArray(DataInput in) throws IOException {
+            int[] array = new int[in.readInt()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = in.readInt();
+            }
+            return array;
+        }
+    }
+}
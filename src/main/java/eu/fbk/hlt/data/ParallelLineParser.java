@@ -0,0 +1,226 @@
+package eu.fbk.hlt.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a (decompressed) text stream into line-aligned chunks and processes them on a fork-join pool
+ * Reading stays sequential while the chunks are parsed concurrently;
+ *  the results are returned in the order of the chunks, so they can be merged deterministically
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class ParallelLineParser {
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10.0;
+        }
+    }
+
+    protected final ForkJoinPool pool;
+    protected final int chunkSize;
+    protected final int maxPendingChunks;
+
+    public ParallelLineParser() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelLineParser(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        //Limits the amount of raw text kept in memory when parsing is slower than reading
+        this.maxPendingChunks = pool.getParallelism() * 4;
+    }
+
+    /**
+     * Process the stream chunk by chunk. Every chunk handed to the processor contains only complete lines
+     *
+     * The input is never buffered as a whole: at most maxPendingChunks raw chunks wait for the parsing,
+     *  and every chunk drops its bytes as soon as it is parsed. The parsed results of all the chunks
+     *  are kept until the end, so the peak memory is the one of the parsed data plus a few raw chunks
+     */
+    public <T> List<T> parse(InputStream stream, ChunkProcessor<T> processor) throws IOException {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        List<T> results = new ArrayList<>();
+        byte[] buffer = new byte[chunkSize];
+        int filled = 0;
+        boolean eof = false;
+        try (InputStream input = stream) {
+            while (!eof) {
+                //Fill the buffer up
+                while (filled < buffer.length) {
+                    int read = input.read(buffer, filled, buffer.length - filled);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    filled += read;
+                }
+
+                //Cut at the last complete line
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && buffer[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        //The line doesn't fit into the chunk
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        continue;
+                    }
+                }
+                if (end > 0) {
+                    tasks.add(pool.submit(new ChunkTask<>(buffer, end, processor)));
+                }
+
+                //Carry the incomplete line over to the next chunk
+                byte[] next = new byte[Math.max(chunkSize, filled - end)];
+                System.arraycopy(buffer, end, next, 0, filled - end);
+                filled -= end;
+                buffer = next;
+
+                //Wait for the oldest chunks if the parsing is lagging behind
+                while (tasks.size() - results.size() > maxPendingChunks) {
+                    results.add(join(tasks.get(results.size())));
+                }
+            }
+        }
+
+        while (results.size() < tasks.size()) {
+            results.add(join(tasks.get(results.size())));
+        }
+        return results;
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            throw new IOException("Can't parse the chunk: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parse a decimal number from the byte range without allocating
+     * Falls back to Double.parseDouble for the exotic notations (NaN, Infinity, hex)
+     */
+    public static double parseDouble(byte[] buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int significant = 0;
+        boolean hasDigits = false;
+        while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+            if (significant < 18) {
+                mantissa = mantissa * 10 + (buffer[i] - '0');
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+            }
+            hasDigits = true;
+            i++;
+        }
+        if (i < to && buffer[i] == '.') {
+            i++;
+            while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + (buffer[i] - '0');
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                    exponent--;
+                }
+                hasDigits = true;
+                i++;
+            }
+        }
+        if (hasDigits && i < to && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+                negativeExp = buffer[i] == '-';
+                i++;
+            }
+            int exp = 0;
+            boolean hasExpDigits = false;
+            while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+                if (exp < 10000) {
+                    exp = exp * 10 + (buffer[i] - '0');
+                }
+                hasExpDigits = true;
+                i++;
+            }
+            if (!hasExpDigits) {
+                hasDigits = false;
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (!hasDigits || i != to) {
+            return Double.parseDouble(new String(buffer, from, to - from, StandardCharsets.US_ASCII));
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    public static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    public interface ChunkProcessor<T> {
+        /**
+         * @param buffer raw bytes of the chunk
+         * @param from the first byte of the chunk
+         * @param to the end of the chunk (exclusive), always at a line boundary
+         */
+        T process(byte[] buffer, int from, int to);
+    }
+
+    private static class ChunkTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private byte[] buffer;
+        private final int length;
+        private final ChunkProcessor<T> processor;
+
+        ChunkTask(byte[] buffer, int length, ChunkProcessor<T> processor) {
+            this.buffer = buffer;
+            this.length = length;
+            this.processor = processor;
+        }
+
+        @Override
+        protected T compute() {
+            try {
+                return processor.process(buffer, 0, length);
+            } finally {
+                //Release the raw text as soon as it is parsed
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package eu.fbk.hlt.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URISyntaxException;
+import java.util.Set;
+
+/**
+ * Word vectors quantized to int8 with a float scale per row (symmetric, scale = max|x| / 127)
+ * Takes roughly a quarter of the memory of the float matrix, vectors are dequantized on lookup
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class QuantizedWordVectors extends WordVectors {
+    final static Logger logger = LoggerFactory.getLogger(QuantizedWordVectors.class);
+
+    protected byte[] quantized;
+    protected float[] scales;
+
+    public QuantizedWordVectors(DatasetMetaInfo info) throws URISyntaxException {
+        super(info);
+    }
+
+    public QuantizedWordVectors(DatasetMetaInfo info, Set<String> vocabulary) throws URISyntaxException {
+        super(info, vocabulary);
+    }
+
+    /**
+     * Quantize already loaded word vectors
+     */
+    public QuantizedWordVectors(WordVectors vectors) throws URISyntaxException {
+        super(vectors.getInfo(), false);
+        index = vectors.index;
+        size = vectors.size;
+        dim = vectors.dim;
+        zeroes = vectors.zeroes;
+        quantize(vectors);
+    }
+
+    @Override
+    public void parse() {
+        super.parse();
+        quantize(this);
+        matrix = null;
+    }
+
+    protected void quantize(WordVectors vectors) {
+        byte[] quantized = new byte[size * dim];
+        float[] scales = new float[size];
+        double[] row = new double[dim];
+        for (int id = 0; id < size; id++) {
+            vectors.copyInto(id, row, 0);
+            double max = 0.0;
+            for (int i = 0; i < dim; i++) {
+                max = Math.max(max, Math.abs(row[i]));
+            }
+            float scale = (float) (max / 127.0);
+            scales[id] = scale;
+            if (scale == 0.0f) {
+                continue;
+            }
+            int base = id * dim;
+            for (int i = 0; i < dim; i++) {
+                quantized[base + i] = (byte) Math.round(row[i] / scale);
+            }
+        }
+        this.quantized = quantized;
+        this.scales = scales;
+        logger.info("Quantized "+size+" words. "+getMemoryFootprint()/(1 << 20)+"MB instead of "+(4L * size * dim)/(1 << 20)+"MB");
+    }
+
+    @Override
+    public void copyInto(int id, double[] dst, int offset) {
+        //Before the quantization is done (while parsing) the float matrix is used
+        if (id < 0 || quantized == null) {
+            super.copyInto(id, dst, offset);
+            return;
+        }
+        int base = id * dim;
+        float scale = scales[id];
+        for (int i = 0; i < dim; i++) {
+            dst[offset + i] = quantized[base + i] * scale;
+        }
+    }
+
+    /**
+     * @return size of the quantized matrix and scales in bytes
+     */
+    public long getMemoryFootprint() {
+        return (long) size * dim + 4L * size;
+    }
+}
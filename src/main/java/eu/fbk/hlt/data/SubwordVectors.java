@@ -0,0 +1,182 @@
+package eu.fbk.hlt.data;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+
+/**
+ * Composes vectors for out-of-vocabulary words from hashed character n-grams (fastText-style)
+ * Every word is wrapped into "<" and ">" and split into n-grams from MIN_N to MAX_N characters
+ * The vector of an n-gram bucket is the average of the vectors of the known words containing it,
+ *  the vector of an unknown word is the average of its non-empty buckets
+ *
+ * Composed vectors are kept in a bounded concurrent cache (LRU-like eviction), so repeated
+ *  unknown words are composed only once
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class SubwordVectors {
+    final static Logger logger = LoggerFactory.getLogger(SubwordVectors.class);
+
+    public static final int MIN_N = 3;
+    public static final int MAX_N = 5;
+    public static final int DEFAULT_BUCKETS = 1 << 16;
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    protected final int dim;
+    protected final int bucketCount;
+    protected final float[] buckets;
+    protected final BitSet used;
+    protected final LoadingCache<String, float[]> cache;
+
+    public SubwordVectors(WordVectors vectors) {
+        this(vectors, DEFAULT_BUCKETS, DEFAULT_CACHE_SIZE);
+    }
+
+    public SubwordVectors(WordVectors vectors, int bucketCount, int cacheSize) {
+        this.dim = vectors.getDim();
+        this.bucketCount = bucketCount;
+        this.buckets = new float[bucketCount * dim];
+        this.used = new BitSet(bucketCount);
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .recordStats()
+            .build(new CacheLoader<String, float[]>() {
+                @Override
+                public float[] load(String word) {
+                    return compose(word);
+                }
+            });
+        build(vectors);
+    }
+
+    /**
+     * Average the vectors of all the known words into their n-gram buckets
+     */
+    protected void build(WordVectors vectors) {
+        int[] counts = new int[bucketCount];
+        double[] vector = new double[dim];
+        int[] ngrams = new int[64];
+        for (int id = 0; id < vectors.size(); id++) {
+            String word = vectors.wordOf(id);
+            int ngramCount = ngrams(word, ngrams);
+            if (ngramCount > ngrams.length) {
+                ngrams = new int[ngramCount];
+                ngrams(word, ngrams);
+            }
+            vectors.copyInto(id, vector, 0);
+            for (int i = 0; i < ngramCount; i++) {
+                int base = ngrams[i] * dim;
+                counts[ngrams[i]]++;
+                for (int j = 0; j < dim; j++) {
+                    buckets[base + j] += vector[j];
+                }
+            }
+        }
+
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            used.set(bucket);
+            int base = bucket * dim;
+            for (int j = 0; j < dim; j++) {
+                buckets[base + j] /= counts[bucket];
+            }
+        }
+        logger.info("Built "+used.cardinality()+" out of "+bucketCount+" subword buckets from "+vectors.size()+" words");
+    }
+
+    /**
+     * Copy the composed vector of the word to the destination buffer (zeroes if none of the n-grams are known)
+     */
+    public void copyInto(String word, double[] dst, int offset) {
+        float[] vector = cache.getUnchecked(word);
+        for (int i = 0; i < dim; i++) {
+            dst[offset + i] = vector[i];
+        }
+    }
+
+    protected float[] compose(String word) {
+        int[] ngrams = new int[64];
+        int ngramCount = ngrams(word, ngrams);
+        if (ngramCount > ngrams.length) {
+            ngrams = new int[ngramCount];
+            ngrams(word, ngrams);
+        }
+
+        double[] sum = new double[dim];
+        int known = 0;
+        for (int i = 0; i < ngramCount; i++) {
+            if (!used.get(ngrams[i])) {
+                continue;
+            }
+            int base = ngrams[i] * dim;
+            known++;
+            for (int j = 0; j < dim; j++) {
+                sum[j] += buckets[base + j];
+            }
+        }
+
+        float[] vector = new float[dim];
+        if (known > 0) {
+            for (int j = 0; j < dim; j++) {
+                vector[j] = (float) (sum[j] / known);
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Hash the n-grams of the word into buckets
+     * @return the number of n-grams. If it's bigger than the buffer, only the part that fits is filled
+     */
+    protected int ngrams(String word, int[] result) {
+        int length = word.length() + 2;
+        int count = 0;
+        for (int from = 0; from < length; from++) {
+            //FNV-1a over the characters of the bounded word
+            int hash = 0x811C9DC5;
+            for (int n = 1; n <= MAX_N && from + n <= length; n++) {
+                int pos = from + n - 1;
+                char c = pos == 0 ? '<' : pos == length - 1 ? '>' : word.charAt(pos - 1);
+                hash = (hash ^ c) * 0x01000193;
+                if (n < MIN_N) {
+                    continue;
+                }
+                if (count < result.length) {
+                    result[count] = (hash & Integer.MAX_VALUE) % bucketCount;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return fraction of the unknown word lookups served from the cache
+     */
+    public double getCacheHitRatio() {
+        return cache.stats().hitRate();
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("Subword cache: %d lookups, hit ratio %.2f%%, %d composed, %d evicted",
+            stats.requestCount(), 100.0 * stats.hitRate(), stats.loadCount(), stats.evictionCount());
+    }
+}
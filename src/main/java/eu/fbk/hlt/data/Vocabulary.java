@@ -0,0 +1,331 @@
+package eu.fbk.hlt.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Immutable word to id mapping built on a minimal perfect hash (hash and displace) over UTF-8 bytes
+ * Words are stored in a single byte array, so the structure has no per-word object overhead
+ *  and can be serialised next to the embedding matrix
+ *
+ * Lookups work directly on a CharSequence (optionally lowercasing it on the fly) and don't allocate
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class Vocabulary {
+    public static final int NOT_FOUND = -1;
+
+    //Average number of keys per displacement bucket
+    protected static final int BUCKET_SIZE = 4;
+    protected static final int MAX_ATTEMPTS = 16;
+    protected static final int MAX_DISPLACEMENT = 1 << 22;
+
+    protected long seed;
+    protected byte[] bytes;
+    protected int[] offsets;
+    //Displacement of the bucket or, if negative, the slot of its only key encoded as -(slot+1)
+    protected int[] displacements;
+    protected int[] slots;
+
+    protected Vocabulary() {}
+
+    /**
+     * Build the vocabulary. The id of every word is its position in the array
+     */
+    public static Vocabulary build(String[] words) {
+        Vocabulary vocabulary = new Vocabulary();
+        vocabulary.store(words);
+        Random random = new Random(words.length);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            vocabulary.seed = random.nextLong();
+            if (vocabulary.buildHash()) {
+                return vocabulary;
+            }
+        }
+        throw new IllegalStateException("Can't build the perfect hash. Are there duplicate words?");
+    }
+
+    private void store(String[] words) {
+        byte[][] encoded = new byte[words.length][];
+        int total = 0;
+        for (int i = 0; i < words.length; i++) {
+            encoded[i] = words[i].getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length;
+        }
+        bytes = new byte[total];
+        offsets = new int[words.length + 1];
+        for (int i = 0; i < words.length; i++) {
+            System.arraycopy(encoded[i], 0, bytes, offsets[i], encoded[i].length);
+            offsets[i + 1] = offsets[i] + encoded[i].length;
+        }
+    }
+
+    private boolean buildHash() {
+        int size = size();
+        int bucketCount = Math.max(1, size / BUCKET_SIZE);
+        displacements = new int[bucketCount];
+        slots = new int[Math.max(1, size)];
+        Arrays.fill(slots, NOT_FOUND);
+
+        //Distributing the keys into the buckets
+        long[] hashes = new long[size];
+        int[] bucketSizes = new int[bucketCount];
+        for (int id = 0; id < size; id++) {
+            hashes[id] = hash(bytes, offsets[id], offsets[id + 1], seed);
+            bucketSizes[bucket(hashes[id], bucketCount)]++;
+        }
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int i = 0; i < bucketCount; i++) {
+            bucketStarts[i + 1] = bucketStarts[i] + bucketSizes[i];
+        }
+        int[] bucketKeys = new int[size];
+        int[] fill = Arrays.copyOf(bucketStarts, bucketCount);
+        for (int id = 0; id < size; id++) {
+            bucketKeys[fill[bucket(hashes[id], bucketCount)]++] = id;
+        }
+
+        //Placing the largest buckets first
+        List<Integer> order = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            if (bucketSizes[i] > 0) {
+                order.add(i);
+            }
+        }
+        order.sort((a, b) -> Integer.compare(bucketSizes[b], bucketSizes[a]));
+
+        int[] positions = new int[BUCKET_SIZE * 16];
+        int freeSlot = 0;
+        for (int bucket : order) {
+            int from = bucketStarts[bucket];
+            int count = bucketSizes[bucket];
+            if (count == 1) {
+                //A single key can be put into any free slot directly
+                while (slots[freeSlot] != NOT_FOUND) {
+                    freeSlot++;
+                }
+                displacements[bucket] = -(freeSlot + 1);
+                slots[freeSlot] = bucketKeys[from];
+                continue;
+            }
+            if (positions.length < count) {
+                positions = new int[count];
+            }
+
+            boolean placed = false;
+            for (int displacement = 1; displacement < MAX_DISPLACEMENT && !placed; displacement++) {
+                placed = true;
+                for (int i = 0; i < count && placed; i++) {
+                    int position = position(hashes[bucketKeys[from + i]], displacement, size);
+                    if (slots[position] != NOT_FOUND) {
+                        placed = false;
+                    }
+                    for (int j = 0; j < i && placed; j++) {
+                        if (positions[j] == position) {
+                            placed = false;
+                        }
+                    }
+                    positions[i] = position;
+                }
+                if (placed) {
+                    displacements[bucket] = displacement;
+                    for (int i = 0; i < count; i++) {
+                        slots[positions[i]] = bucketKeys[from + i];
+                    }
+                }
+            }
+            if (!placed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return the id of the word or NOT_FOUND
+     */
+    public int idOf(CharSequence word) {
+        return idOf(word, false);
+    }
+
+    /**
+     * @return the id of the lowercased word or NOT_FOUND. The word itself isn't copied
+     */
+    public int idOfLowerCase(CharSequence word) {
+        return idOf(word, true);
+    }
+
+    protected int idOf(CharSequence word, boolean lowerCase) {
+        int size = size();
+        if (size == 0) {
+            return NOT_FOUND;
+        }
+        long hash = hash(word, lowerCase, seed);
+        int bucket = bucket(hash, displacements.length);
+        int displacement = displacements[bucket];
+        int id = slots[displacement < 0 ? -displacement - 1 : position(hash, displacement, size)];
+        return equals(id, word, lowerCase) ? id : NOT_FOUND;
+    }
+
+    /**
+     * @return hash of all the words in the id order
+     */
+    public long fingerprint() {
+        long hash = hash(bytes, 0, bytes.length, size());
+        //The boundaries of the words, otherwise {"ab", "c"} and {"a", "bc"} would be the same
+        for (int offset : offsets) {
+            hash = mix((hash ^ offset) * 0x100000001b3L);
+        }
+        return hash;
+    }
+
+    public String wordOf(int id) {
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare the stored word with the sequence by encoding the latter on the fly
+     */
+    private boolean equals(int id, CharSequence word, boolean lowerCase) {
+        int pos = offsets[id];
+        int end = offsets[id + 1];
+        for (int i = 0; i < word.length(); ) {
+            int cp = Character.codePointAt(word, i);
+            i += Character.charCount(cp);
+            if (lowerCase) {
+                cp = Character.toLowerCase(cp);
+            }
+            //Encoding the code point to UTF-8 and matching byte by byte
+            if (cp < 0x80) {
+                if (pos >= end || bytes[pos++] != (byte) cp) {
+                    return false;
+                }
+            } else if (cp < 0x800) {
+                if (pos + 2 > end
+                    || bytes[pos++] != (byte) (0xC0 | (cp >> 6))
+                    || bytes[pos++] != (byte) (0x80 | (cp & 0x3F))) {
+                    return false;
+                }
+            } else if (cp < 0x10000) {
+                if (pos + 3 > end
+                    || bytes[pos++] != (byte) (0xE0 | (cp >> 12))
+                    || bytes[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                    || bytes[pos++] != (byte) (0x80 | (cp & 0x3F))) {
+                    return false;
+                }
+            } else {
+                if (pos + 4 > end
+                    || bytes[pos++] != (byte) (0xF0 | (cp >> 18))
+                    || bytes[pos++] != (byte) (0x80 | ((cp >> 12) & 0x3F))
+                    || bytes[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                    || bytes[pos++] != (byte) (0x80 | (cp & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+
+    private static int bucket(long hash, int bucketCount) {
+        return (int) ((hash >>> 40) % bucketCount);
+    }
+
+    private static int position(long hash, int displacement, int size) {
+        //Every displacement gives an independent position for the key
+        return (int) Long.remainderUnsigned(mix(hash + displacement * 0x9E3779B97F4A7C15L), size);
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes followed by a 64-bit finalizer
+     */
+    private static long hash(byte[] bytes, int from, int to, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Same hash as for the byte arrays, the sequence is encoded to UTF-8 on the fly
+     */
+    private static long hash(CharSequence word, boolean lowerCase, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < word.length(); ) {
+            int cp = Character.codePointAt(word, i);
+            i += Character.charCount(cp);
+            if (lowerCase) {
+                cp = Character.toLowerCase(cp);
+            }
+            if (cp < 0x80) {
+                hash = (hash ^ cp) * 0x100000001b3L;
+            } else if (cp < 0x800) {
+                hash = (hash ^ (0xC0 | (cp >> 6))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | (cp & 0x3F))) * 0x100000001b3L;
+            } else if (cp < 0x10000) {
+                hash = (hash ^ (0xE0 | (cp >> 12))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | ((cp >> 6) & 0x3F))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | (cp & 0x3F))) * 0x100000001b3L;
+            } else {
+                hash = (hash ^ (0xF0 | (cp >> 18))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | ((cp >> 12) & 0x3F))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | ((cp >> 6) & 0x3F))) * 0x100000001b3L;
+                hash = (hash ^ (0x80 | (cp & 0x3F))) * 0x100000001b3L;
+            }
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(seed);
+        writeArray(out, offsets);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        writeArray(out, displacements);
+        writeArray(out, slots);
+    }
+
+    public static Vocabulary read(DataInput in) throws IOException {
+        Vocabulary vocabulary = new Vocabulary();
+        vocabulary.seed = in.readLong();
+        vocabulary.offsets = readArray(in);
+        vocabulary.bytes = new byte[in.readInt()];
+        in.readFully(vocabulary.bytes);
+        vocabulary.displacements = readArray(in);
+        vocabulary.slots = readArray(in);
+        return vocabulary;
+    }
+
+    private static void writeArray(DataOutput out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int value : array) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readArray(DataInput in) throws IOException {
+        int[] array = new int[in.readInt()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+}
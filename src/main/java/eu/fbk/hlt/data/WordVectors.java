@@ -1,6 +1,5 @@
 package eu.fbk.hlt.data;
 
-import edu.stanford.nlp.util.Generics;
 import org.ejml.simple.SimpleMatrix;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
@@ -9,13 +8,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A word vector lookup map, mainly used to store word embeddings
  * The format is
  *  WORD X1 X2 X3 X4
  *
+ * Vectors are kept in a single row-major float matrix, words are resolved to row ids
+ *  through a compact immutable Vocabulary (perfect hash), built once the parsing is done
+ *
+ * Optionally can compose vectors for unknown words from character n-grams (see SubwordVectors)
+ *
+ * Optionally can be restricted to a vocabulary, in which case all the other words are skipped while parsing
+ *
  * Optionally can perform L2 normalization
  *
  * @author Yaroslav Nechaev (remper@me.com)
@@ -23,64 +35,249 @@ import java.util.Map;
 public class WordVectors extends Dataset {
     final static Logger logger = LoggerFactory.getLogger(WordVectors.class);
 
-    protected Map<String, INDArray> wordVectors;
+    protected Vocabulary index;
+    protected float[] matrix;
+    protected int size;
     protected INDArray zeroes;
     protected int dim;
+    protected Set<String> vocabulary;
+    protected SubwordVectors subwords;
 
     public WordVectors(DatasetMetaInfo info) throws URISyntaxException {
         super(info);
     }
 
+    protected WordVectors(DatasetMetaInfo info, boolean parse) throws URISyntaxException {
+        super(info, parse);
+    }
+
+    /**
+     * Load only the vectors of the words from the vocabulary
+     */
+    public WordVectors(DatasetMetaInfo info, Set<String> vocabulary) throws URISyntaxException {
+        super(info, false);
+        this.vocabulary = vocabulary;
+        parse();
+    }
+
     @Override
     public void parse() {
         //Parse the input file
-        wordVectors = Generics.newHashMap();
-        try (LineNumberReader reader = getReader()) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] elements = line.split("\\s+");
-                //Sanitizing the the word
-                String word = elements[0];
-                if(word.equals("UNKNOWN") || word.equals("UUUNKKK") || word.equals("UNK") || word.equals("*UNKNOWN*") || word.equals("<unk>")) {
-                    word = "*UNK*";
-                }
+        size = 0;
+        try {
+            List<Chunk> chunks = new ParallelLineParser().parse(getStream(), this::parseChunk);
+            index = Vocabulary.build(merge(chunks));
+            zeroes = Nd4j.zeros(dim);
+            logger.info("Parsed "+size+" words");
+            if (vocabulary != null) {
+                logger.info(String.format("Vocabulary coverage: %d out of %d words (%.2f%%)",
+                    size, vocabulary.size(), vocabulary.isEmpty() ? 0.0 : 100.0 * size / vocabulary.size()));
+            }
+        } catch (IOException e) {
+            logger.error("Can't parse the input file: "+e.getClass().getSimpleName()+" "+e.getMessage());
+        }
+    }
 
-                if(word.equals("<s>")) {
-                    word = "*START*";
-                }
+    /**
+     * Merge the parsed chunks in their original order
+     * @return words in the row order
+     */
+    protected String[] merge(List<Chunk> chunks) {
+        Map<String, Integer> ids = new HashMap<>();
+        int rows = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.words.size();
+        }
 
-                if(word.equals("</s>")) {
-                    word = "*END*";
-                }
+        for (Chunk chunk : chunks) {
+            int offset = 0;
+            for (int row = 0; row < chunk.words.size(); row++) {
+                String word = chunk.words.get(row);
+                int length = chunk.lengths[row];
 
                 //Checking dimensions
                 if (dim == 0) {
-                    dim = elements.length - 1;
+                    dim = length;
+                    matrix = new float[rows * dim];
                 }
-                if (dim >= elements.length) {
-                    logger.warn("Skipping the word \""+word+"\" — vector is too small. Got: "+(elements.length-1)+". Need: "+dim);
+                if (length < dim) {
+                    logger.warn("Skipping the word \""+word+"\" — vector is too small. Got: "+length+". Need: "+dim);
+                    offset += length;
                     continue;
                 }
 
-                //Populating word vector
-                double[] vector = new double[dim];
-                for (int i = 0; i < dim; i++) {
-                    vector[i] = Double.valueOf(elements[i+1]);
+                //Saving into the dictionary (the last occurrence of a word wins)
+                Integer id = ids.get(word);
+                if (id == null) {
+                    id = size++;
+                    ids.put(word, id);
                 }
+                System.arraycopy(chunk.values, offset, matrix, id * dim, dim);
+                offset += length;
+            }
+        }
 
-                //Saving into the dictionary
-                wordVectors.put(word, Nd4j.create(vector));
+        if (matrix != null) {
+            matrix = Arrays.copyOf(matrix, size * dim);
+        }
+        String[] words = new String[size];
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            words[entry.getValue()] = entry.getKey();
+        }
+        return words;
+    }
+
+    /**
+     * Parse a line-aligned part of the file
+     */
+    protected Chunk parseChunk(byte[] buffer, int from, int to) {
+        Chunk chunk = new Chunk();
+        int pos = from;
+        while (pos < to) {
+            //Skipping leading whitespace and empty lines
+            while (pos < to && ParallelLineParser.isWhitespace(buffer[pos])) {
+                pos++;
+            }
+            if (pos < to && buffer[pos] == '\n') {
+                pos++;
+                continue;
+            }
+            if (pos >= to) {
+                break;
             }
 
-            zeroes = Nd4j.zeros(dim);
-            logger.info("Parsed "+wordVectors.size()+" words");
-        } catch (IOException e) {
-            logger.error("Can't parse the input file: "+e.getClass().getSimpleName()+" "+e.getMessage());
+            //Reading the word
+            int start = pos;
+            while (pos < to && buffer[pos] != '\n' && !ParallelLineParser.isWhitespace(buffer[pos])) {
+                pos++;
+            }
+            String word = sanitize(new String(buffer, start, pos - start, StandardCharsets.UTF_8));
+            if (vocabulary != null && !vocabulary.contains(word)) {
+                while (pos < to && buffer[pos] != '\n') {
+                    pos++;
+                }
+                continue;
+            }
+
+            //Reading the vector
+            int length = 0;
+            while (pos < to && buffer[pos] != '\n') {
+                if (ParallelLineParser.isWhitespace(buffer[pos])) {
+                    pos++;
+                    continue;
+                }
+                start = pos;
+                while (pos < to && buffer[pos] != '\n' && !ParallelLineParser.isWhitespace(buffer[pos])) {
+                    pos++;
+                }
+                chunk.add((float) ParallelLineParser.parseDouble(buffer, start, pos));
+                length++;
+            }
+            chunk.addWord(word, length);
         }
+        return chunk;
+    }
+
+    protected static String sanitize(String word) {
+        if(word.equals("UNKNOWN") || word.equals("UUUNKKK") || word.equals("UNK") || word.equals("*UNKNOWN*") || word.equals("<unk>")) {
+            return "*UNK*";
+        }
+
+        if(word.equals("<s>")) {
+            return "*START*";
+        }
+
+        if(word.equals("</s>")) {
+            return "*END*";
+        }
+        return word;
+    }
+
+    /**
+     * Resolve the word to its row id
+     * @return row id or -1 if the word is unknown
+     */
+    public int idOf(CharSequence word) {
+        return index.idOf(word);
+    }
+
+    /**
+     * Resolve the lowercased word to its row id without creating the lowercased copy
+     * @return row id or -1 if the word is unknown
+     */
+    public int idOfLowerCase(CharSequence word) {
+        return index.idOfLowerCase(word);
+    }
+
+    public String wordOf(int id) {
+        return index.wordOf(id);
+    }
+
+    public Vocabulary getVocabulary() {
+        return index;
+    }
+
+    /**
+     * Copy the vector with the given row id to the destination buffer
+     * Unknown ids (negative) are filled with zeroes
+     */
+    public void copyInto(int id, double[] dst, int offset) {
+        if (id < 0) {
+            Arrays.fill(dst, offset, offset + dim, 0.0);
+            return;
+        }
+        int base = id * dim;
+        for (int i = 0; i < dim; i++) {
+            dst[offset + i] = matrix[base + i];
+        }
+    }
+
+    /**
+     * Copy the vector of the lowercased word to the destination buffer
+     * Unknown words are composed by the subword fallback if it's enabled, otherwise filled with zeroes
+     */
+    public void copyWordInto(CharSequence word, double[] dst, int offset) {
+        int id = idOfLowerCase(word);
+        if (id < 0 && subwords != null) {
+            subwords.copyInto(word.toString().toLowerCase(), dst, offset);
+            return;
+        }
+        copyInto(id, dst, offset);
     }
 
     public INDArray lookup(String word) {
-        return wordVectors.getOrDefault(word, zeroes);
+        int id = idOf(word);
+        if (id < 0 && subwords == null) {
+            return zeroes;
+        }
+        double[] vector = new double[dim];
+        if (id < 0) {
+            subwords.copyInto(word, vector, 0);
+        } else {
+            copyInto(id, vector, 0);
+        }
+        return Nd4j.create(vector);
+    }
+
+    /**
+     * @return string that changes whenever the words or their ids change
+     */
+    public String getVersion() {
+        return info.name+":"+size+":"+dim+":"+Long.toHexString(index.fingerprint());
+    }
+
+    public SubwordVectors getSubwordFallback() {
+        return subwords;
+    }
+
+    /**
+     * Enable composition of the vectors for unknown words (null disables it)
+     */
+    public void setSubwordFallback(SubwordVectors subwords) {
+        if (subwords != null && subwords.getDim() != dim) {
+            throw new IllegalArgumentException("Subword vectors dim doesn't match: "+subwords.getDim()+" != "+dim);
+        }
+        this.subwords = subwords;
     }
 
     public boolean isZeroes(INDArray vector) {
@@ -90,4 +287,33 @@ public class WordVectors extends Dataset {
     public int getDim() {
         return dim;
     }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Words and vector components parsed from a single chunk of the file
+     */
+    protected static class Chunk {
+        protected List<String> words = new ArrayList<>();
+        protected int[] lengths = new int[1024];
+        protected float[] values = new float[1 << 16];
+        protected int valuesSize = 0;
+
+        protected void add(float value) {
+            if (valuesSize == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[valuesSize++] = value;
+        }
+
+        protected void addWord(String word, int length) {
+            if (words.size() == lengths.length) {
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            lengths[words.size()] = length;
+            words.add(word);
+        }
+    }
 }
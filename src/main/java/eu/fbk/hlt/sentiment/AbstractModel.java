@@ -6,12 +6,15 @@ import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.AnnotationPipeline;
 import eu.fbk.hlt.data.LabeledSentences;
 import eu.fbk.hlt.data.WordVectors;
+import eu.fbk.hlt.sentiment.util.HogwildTrainer;
+import eu.fbk.hlt.sentiment.util.ParallelAnnotator;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
+import eu.fbk.hlt.sentiment.util.SentenceCache;
 import eu.fbk.hlt.sentiment.util.Stopwatch;
+import eu.fbk.hlt.sentiment.util.TokenizedSentence;
 import org.deeplearning4j.eval.Evaluation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
-import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,8 +22,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * A generic model with training and evaluation step
@@ -31,50 +37,99 @@ public abstract class AbstractModel {
     protected final static Logger logger = LoggerFactory.getLogger(AbstractModel.class);
 
     public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_PREDICTION_BATCH_SIZE = 1000;
     //Save 20% of samples randomly as a test set
     public static final double DEFAULT_TEST_SPLIT = 0.2;
 
     protected WordVectors embeddings;
     protected AnnotationPipeline pipeline;
     protected List<String> classes;
+    protected SentenceCache sentenceCache;
+    protected final PipelineFactory pipelines;
+    //Every annotation worker gets its own pipeline
+    protected final ThreadLocal<AnnotationPipeline> workerPipelines;
+    protected ParallelAnnotator annotator = new ParallelAnnotator(0, ParallelAnnotator.DEFAULT_QUEUE_SIZE);
+    //Number of samples passed to the model at once during the training
+    protected int trainingBatchSize = 1;
+    //Number of threads of the Hogwild training (1 for the sequential training)
+    protected int hogwildThreads = 1;
+    protected Random random = new Random();
+    protected int trainedSamples = 0;
+    protected long trainingTime = 0;
 
     List<SentenceModelListener> sentenceModelListeners = new ArrayList<>();
 
-    public AbstractModel(List<String> classes, WordVectors embeddings, AnnotationPipeline pipeline) {
-        logger.info(String.format("Classes: %d. Embeddings dim: %s", classes.size(), embeddings.getDim()));
+    public AbstractModel(List<String> classes, WordVectors embeddings, PipelineFactory pipelines) {
+        logger.info(String.format("Classes: %d. Embeddings dim: %s. Annotators: %s", classes.size(), embeddings.getDim(), getAnnotators()));
         this.embeddings = embeddings;
-        this.pipeline = pipeline;
+        this.pipelines = pipelines;
+        this.pipeline = pipelines.get(getAnnotators());
+        this.workerPipelines = ThreadLocal.withInitial(() -> pipelines.create(getAnnotators()));
         this.classes = classes;
     }
 
+    /**
+     * Annotators the model needs from the NLP pipeline. Only the tokens are used by default
+     */
+    public String getAnnotators() {
+        return "tokenize";
+    }
+
     /**
      * Trains the model using the provided dataset
+     * @return evaluation on the test split
      */
-    public void train(LabeledSentences dataset) {
+    public Evaluation train(LabeledSentences dataset) {
         int counter = 0;
-        List<LabeledSentences.Sentence> testInput = new ArrayList<>();
+        List<TokenizedSentence> testInput = new ArrayList<>();
+        List<INDArray> batchInputs = new ArrayList<>(trainingBatchSize);
+        List<INDArray> batchLabels = new ArrayList<>(trainingBatchSize);
         Stopwatch watch = Stopwatch.start();
-        Random testRnd = new Random();
-        LabeledSentences.Sentence sentence;
         logger.info("Starting training with dataset \""+dataset.getInfo().name+"\"@"+dataset.getClass().getSimpleName());
-        while ((sentence = dataset.readNext()) != null) {
+        Iterator<TokenizedSentence> sentences = tokenize(dataset);
+        HogwildTrainer hogwild = hogwildThreads > 1
+            ? new HogwildTrainer(hogwildThreads, HogwildTrainer.DEFAULT_QUEUE_SIZE, this::createHogwildWorker)
+            : null;
+        while (sentences.hasNext()) {
+            TokenizedSentence sentence = sentences.next();
             //Add some of the samples to test set
-            if (testRnd.nextDouble() <= DEFAULT_TEST_SPLIT) {
+            if (random.nextDouble() <= DEFAULT_TEST_SPLIT) {
                 testInput.add(sentence);
                 continue;
             }
-            INDArray input = sentence2mat(sentence);
-            INDArray label = getLabelVector(sentence.label);
-            train(input, label);
+            if (hogwild != null) {
+                hogwild.submit(sentence2mat(sentence), getLabelVector(sentence.label));
+            } else {
+                batchInputs.add(sentence2mat(sentence));
+                batchLabels.add(getLabelVector(sentence.label));
+            }
+            if (batchInputs.size() >= trainingBatchSize) {
+                train(batchInputs, batchLabels);
+                batchInputs.clear();
+                batchLabels.clear();
+            }
 
             counter++;
             if (counter % DEFAULT_BATCH_SIZE == 0) {
                 logger.info(counter+" sentences processed. "+((double)watch.click()/1000)+"s");
             }
         }
+        if (!batchInputs.isEmpty()) {
+            train(batchInputs, batchLabels);
+        }
+        if (hogwild != null) {
+            hogwild.finish();
+        }
+        trainedSamples = counter;
+        trainingTime = watch.getTimeSinceStart();
 
         logger.info("Evaluating model....");
-        logger.info(evaluate(testInput).stats(false));
+        Evaluation evaluation = evaluateTokenized(testInput);
+        logger.info(evaluation.stats(false));
+        if (embeddings.getSubwordFallback() != null) {
+            logger.info(embeddings.getSubwordFallback().toString());
+        }
+        return evaluation;
     }
 
     /**
@@ -88,6 +143,44 @@ public abstract class AbstractModel {
         return predict(new LabeledSentences.Sentence("unknown", sentence));
     }
 
+    /**
+     * Predict the labels of a batch of sentences
+     * The batch is annotated at once by the multi-threaded CoreNLP pipeline
+     */
+    public List<Result> predictBatch(List<String> sentences) {
+        List<Annotation> annotations = new ArrayList<>(sentences.size());
+        for (String sentence : sentences) {
+            annotations.add(new Annotation(sentence));
+        }
+        pipeline.annotate(annotations);
+
+        List<INDArray> inputs = new ArrayList<>(sentences.size());
+        for (Annotation annotation : annotations) {
+            inputs.add(sentence2mat(tokenize(annotation, -1), "unknown"));
+        }
+        List<INDArray> outputs = predictMatrices(inputs);
+        List<Result> results = new ArrayList<>(sentences.size());
+        for (int i = 0; i < sentences.size(); i++) {
+            results.add(new Result(sentences.get(i), outputs.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Predict the labels of all the sentences from the stream in batches
+     * @param consumer receives the results in the order of the input
+     */
+    public void predictAll(Iterator<String> sentences, Consumer<Result> consumer) {
+        List<String> batch = new ArrayList<>(DEFAULT_PREDICTION_BATCH_SIZE);
+        while (sentences.hasNext()) {
+            batch.add(sentences.next());
+            if (batch.size() == DEFAULT_PREDICTION_BATCH_SIZE || !sentences.hasNext()) {
+                predictBatch(batch).forEach(consumer);
+                batch.clear();
+            }
+        }
+    }
+
     public void interactive() {
         logger.info("Enabling interactive mode");
         addSentenceModelListener((label, sentence1) -> System.out.println("Sentence model: "+ sentence1.toString()));
@@ -114,8 +207,44 @@ public abstract class AbstractModel {
      */
     protected abstract void train(INDArray input, INDArray label);
 
+    /**
+     * Feed a mini-batch of training samples to the model. By default the samples are fed one by one
+     */
+    protected void train(List<INDArray> inputs, List<INDArray> labels) {
+        for (int i = 0; i < inputs.size(); i++) {
+            train(inputs.get(i), labels.get(i));
+        }
+    }
+
+    /**
+     * @return true if the model provides the replicas for the Hogwild training (see createHogwildWorker)
+     */
+    public boolean supportsHogwild() {
+        return false;
+    }
+
+    /**
+     * Replica of the model for one of the Hogwild training threads. It should train the shared parameters
+     *  directly, keeping only the activations and the gradients to itself
+     * Called only if the model supportsHogwild()
+     */
+    protected HogwildTrainer.Worker createHogwildWorker() {
+        return null;
+    }
+
     protected abstract INDArray predict(INDArray input);
 
+    /**
+     * Forward pass over a batch of sentence matrices. Models can override it to process the batch at once
+     */
+    protected List<INDArray> predictMatrices(List<INDArray> inputs) {
+        List<INDArray> outputs = new ArrayList<>(inputs.size());
+        for (INDArray input : inputs) {
+            outputs.add(predict(input));
+        }
+        return outputs;
+    }
+
     public Evaluation evaluate(List<LabeledSentences.Sentence> test) {
         Evaluation eval = new Evaluation(classes);
         for (LabeledSentences.Sentence sentence : test) {
@@ -124,9 +253,21 @@ public abstract class AbstractModel {
         return eval;
     }
 
+    public Evaluation evaluateTokenized(List<TokenizedSentence> test) {
+        Evaluation eval = new Evaluation(classes);
+        for (TokenizedSentence sentence : test) {
+            eval.eval(getLabelVector(sentence.label), predict(sentence2mat(sentence)));
+        }
+        return eval;
+    }
+
     public INDArray getLabelVector(String label) {
+        return getLabelVector(getLabelIndex(label));
+    }
+
+    public INDArray getLabelVector(int labelIndex) {
         INDArray vector = Nd4j.zeros(classes.size());
-        vector.putScalar(getLabelIndex(label), 1.0);
+        vector.putScalar(labelIndex, 1.0);
         return vector;
     }
 
@@ -146,28 +287,172 @@ public abstract class AbstractModel {
      * @return Matrix representation of the sentence
      */
     private INDArray sentence2mat(LabeledSentences.Sentence sentence) {
+        return sentence2mat(tokenize(sentence, -1, pipeline), sentence.label);
+    }
+
+    private INDArray sentence2mat(TokenizedSentence sentence) {
+        return sentence2mat(sentence, classes.get(sentence.label));
+    }
+
+    private INDArray sentence2mat(TokenizedSentence sentence, String label) {
         int dim = embeddings.getDim();
+        double[] result = new double[dim*sentence.length()];
+        int offset = 0;
+        for (int i = 0; i < sentence.length(); i++) {
+            String unknown = sentence.getUnknown(i);
+            if (unknown != null) {
+                embeddings.copyWordInto(unknown, result, offset);
+            } else {
+                embeddings.copyInto(sentence.ids[i], result, offset);
+            }
+            offset += dim;
+        }
+        INDArray matResult = Nd4j.create(result, new int[]{sentence.length(), dim});
+        //Notify listeners
+        sentenceModelListeners.forEach(value -> value.process(label, matResult));
+        return matResult;
+    }
+
+    /**
+     * Run the sentence through the pipeline and resolve the tokens to the embedding ids
+     */
+    protected TokenizedSentence tokenize(LabeledSentences.Sentence sentence, int label, AnnotationPipeline pipeline) {
         Annotation annotation = new Annotation(sentence.sentence);
         pipeline.annotate(annotation);
-        //ArrayList<INDArray> result = new ArrayList<>();
+        return tokenize(annotation, label);
+    }
+
+    /**
+     * Resolve the tokens of an already annotated sentence to the embedding ids
+     */
+    protected TokenizedSentence tokenize(Annotation annotation, int label) {
         List<CoreLabel> annotations = annotation.get(CoreAnnotations.TokensAnnotation.class);
-        INDArray result = Nd4j.create(dim*annotations.size());
-        int counter = 0;
-        for (CoreLabel token : annotations) {
-            INDArray vector = embeddings.lookup(token.word().toLowerCase());
-            result.put(new INDArrayIndex[]{NDArrayIndex.interval(counter*dim, (counter+1)*dim)}, vector);
-            counter++;
+        int[] ids = new int[annotations.size()];
+        String[] unknown = null;
+        for (int i = 0; i < ids.length; i++) {
+            String word = annotations.get(i).word();
+            ids[i] = embeddings.idOfLowerCase(word);
+            if (ids[i] < 0) {
+                if (unknown == null) {
+                    unknown = new String[ids.length];
+                }
+                unknown[i] = word.toLowerCase();
+            }
         }
-        INDArray matResult = result.reshape(annotations.size(), dim);
-        //Notify listeners
-        sentenceModelListeners.forEach(value -> value.process(sentence.label, matResult));
-        return matResult;
+        return new TokenizedSentence(label, ids, unknown);
+    }
+
+    /**
+     * Stream the tokenized dataset, using the sentence cache if it's enabled
+     * The sentences are annotated by the annotation workers if there are any
+     */
+    protected Iterator<TokenizedSentence> tokenize(LabeledSentences dataset) {
+        Supplier<Iterator<TokenizedSentence>> source = () -> annotator.annotate(dataset, sentence -> tokenize(
+            sentence, getLabelIndex(sentence.label), annotator.isParallel() ? workerPipelines.get() : pipeline
+        ));
+        if (sentenceCache == null) {
+            return source.get();
+        }
+        String key = PipelineFactory.normalize(getAnnotators())+"|"+String.join(",", classes)+"|"+embeddings.getVersion();
+        return sentenceCache.stream(dataset.getInfo().name, key, source);
+    }
+
+    public void setSentenceCache(SentenceCache sentenceCache) {
+        this.sentenceCache = sentenceCache;
+    }
+
+    /**
+     * Annotate the training data on a number of worker threads, overlapping it with the training
+     * @param workers number of worker threads (0 to annotate on the training thread)
+     * @param queueSize maximum number of sentences annotated ahead of the training
+     */
+    public void setAnnotationWorkers(int workers, int queueSize) {
+        this.annotator = new ParallelAnnotator(workers, queueSize);
+    }
+
+    /**
+     * Train on a number of threads that update the shared parameters without any synchronization
+     * @param threads number of the training threads (1 for the sequential training)
+     * @throws UnsupportedOperationException if the model doesn't support the Hogwild training
+     */
+    public void setHogwildThreads(int threads) {
+        if (threads > 1 && !supportsHogwild()) {
+            throw new UnsupportedOperationException(getClass().getSimpleName()+" doesn't support the Hogwild training");
+        }
+        this.hogwildThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @return training samples per second during the last training (annotation included)
+     */
+    public double getTrainingThroughput() {
+        return trainingTime == 0 ? 0.0 : trainedSamples * 1000.0 / trainingTime;
+    }
+
+    /**
+     * Makes the training reproducible: the test split and the initial parameters depend only on the seed
+     */
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+        initialize(random);
+    }
+
+    /**
+     * (Re)initialize the parameters of the model
+     */
+    protected void initialize(Random random) {
+
+    }
+
+    public WordVectors getEmbeddings() {
+        return embeddings;
+    }
+
+    /**
+     * Replace the embeddings (e.g. with a compressed version of the same vectors)
+     */
+    public void setEmbeddings(WordVectors embeddings) {
+        if (embeddings.getDim() != this.embeddings.getDim()) {
+            throw new IllegalArgumentException("Embeddings dim doesn't match: "+embeddings.getDim()+" != "+this.embeddings.getDim());
+        }
+        this.embeddings = embeddings;
+    }
+
+    public List<String> getClasses() {
+        return classes;
     }
 
     public void addSentenceModelListener(SentenceModelListener listener) {
         sentenceModelListeners.add(listener);
     }
 
+    /**
+     * Prediction for a single sentence
+     */
+    public class Result {
+        public final String sentence;
+        public final INDArray probabilities;
+
+        public Result(String sentence, INDArray probabilities) {
+            this.sentence = sentence;
+            this.probabilities = probabilities;
+        }
+
+        public int getLabelIndex() {
+            int maxInd = 0;
+            for (int i = 1; i < probabilities.columns(); i++) {
+                if (probabilities.getDouble(i) > probabilities.getDouble(maxInd)) {
+                    maxInd = i;
+                }
+            }
+            return maxInd;
+        }
+
+        public String getLabel() {
+            return classes.get(getLabelIndex());
+        }
+    }
+
     public interface SentenceModelListener {
         void process(String label, INDArray sentence);
     }
@@ -10,6 +10,7 @@ import edu.stanford.nlp.sentiment.SentimentCoreAnnotations;
 import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.util.*;
 import eu.fbk.hlt.sentiment.util.CLIOptionBuilder;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
 import eu.fbk.hlt.sentiment.util.Stopwatch;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
@@ -142,11 +143,8 @@ public class ModelsComparison {
 	private void annotateScores (ArrayList<GoldSentence> entries) {
 		//incremental annotation: tokenize, split and parse ONCE
 		//...THEN add sentiment
-		Properties commonProps = new Properties();
-		commonProps.setProperty("annotators", "tokenize, ssplit, parse");
-		StanfordCoreNLP commonPipeline = new StanfordCoreNLP(commonProps);
-		BinarizerAnnotator  binarizerAnnotator = new BinarizerAnnotator("ba", new Properties());
-		commonPipeline.addAnnotator(binarizerAnnotator);
+		//the sentiment models need the binarized parse trees
+		AnnotationPipeline commonPipeline = new PipelineFactory().create("tokenize, ssplit, parse");
 
 		//now put all the sentences in an array of Annotation
 		ArrayList<Annotation> sentencesToAnnotate = new ArrayList<>();
@@ -0,0 +1,121 @@
+package eu.fbk.hlt.sentiment;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import eu.fbk.hlt.data.Configuration;
+import eu.fbk.hlt.data.LabeledSentences;
+import eu.fbk.hlt.data.QuantizedWordVectors;
+import eu.fbk.hlt.data.WordVectors;
+import eu.fbk.hlt.sentiment.baseline.CNNTang2015;
+import eu.fbk.hlt.sentiment.util.DatasetProvider;
+import eu.fbk.hlt.sentiment.util.SentenceCache;
+import eu.fbk.hlt.sentiment.util.SentimentParameters;
+import eu.fbk.hlt.sentiment.util.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Compares the accuracy of a model with full-precision and 8-bit quantized embeddings
+ * The model is trained once with the full-precision embeddings and then evaluated
+ *  on the gold file (the same format as in ModelsComparison) before and after swapping the embeddings
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class QuantizationComparison {
+    final static Logger logger = LoggerFactory.getLogger(QuantizationComparison.class);
+
+    protected final AbstractModel model;
+    protected final List<GoldSentence> gold;
+    protected final boolean threeClass;
+
+    public QuantizationComparison(AbstractModel model, List<GoldSentence> gold, boolean threeClass) {
+        this.model = model;
+        this.gold = gold;
+        this.threeClass = threeClass;
+    }
+
+    /**
+     * Main workflow
+     */
+    public void start() throws Exception {
+        WordVectors full = model.getEmbeddings();
+        if (full instanceof QuantizedWordVectors) {
+            logger.warn("The model already uses quantized embeddings, the comparison is meaningless");
+        }
+        Stopwatch watch = Stopwatch.start();
+        int[] fullPredictions = predict();
+        logger.info("Full-precision evaluation took "+((double)watch.click()/1000)+"s");
+
+        QuantizedWordVectors quantized = new QuantizedWordVectors(full);
+        model.setEmbeddings(quantized);
+        watch.click();
+        int[] quantizedPredictions = predict();
+        logger.info("Quantized evaluation took "+((double)watch.click()/1000)+"s");
+        model.setEmbeddings(full);
+
+        int fullCorrect = 0;
+        int quantizedCorrect = 0;
+        int agreed = 0;
+        for (int i = 0; i < gold.size(); i++) {
+            int label = getGoldIndex(gold.get(i));
+            if (fullPredictions[i] == label) {
+                fullCorrect++;
+            }
+            if (quantizedPredictions[i] == label) {
+                quantizedCorrect++;
+            }
+            if (fullPredictions[i] == quantizedPredictions[i]) {
+                agreed++;
+            }
+        }
+
+        double total = Math.max(1, gold.size());
+        long fullBytes = 4L * full.size() * full.getDim();
+        logger.info(String.format("Sentences: %d", gold.size()));
+        logger.info(String.format("Accuracy (float32): %.4f", fullCorrect / total));
+        logger.info(String.format("Accuracy (int8):    %.4f", quantizedCorrect / total));
+        logger.info(String.format("Accuracy delta:     %+.4f", (quantizedCorrect - fullCorrect) / total));
+        logger.info(String.format("Predictions agreement: %.4f", agreed / total));
+        logger.info(String.format("Embeddings memory: %dMB -> %dMB",
+            fullBytes / (1 << 20), quantized.getMemoryFootprint() / (1 << 20)));
+    }
+
+    private int[] predict() {
+        int[] predictions = new int[gold.size()];
+        int[] counter = {0};
+        model.predictAll(gold.stream().map(sentence -> sentence.sentence).iterator(),
+            result -> predictions[counter[0]++] = result.getLabelIndex());
+        return predictions;
+    }
+
+    private int getGoldIndex(GoldSentence sentence) {
+        int label = sentence.goldValue;
+        //Same remapping as in DatasetProvider
+        if (threeClass && label == 0) {
+            label = 1;
+        }
+        if (threeClass && label == 4) {
+            label = 3;
+        }
+        return model.getLabelIndex(String.valueOf(label));
+    }
+
+    public static void main(String[] args) throws Exception {
+        SentimentParameters params = new SentimentParameters(args);
+        if (params.goldFilename == null) {
+            logger.error("The gold file is required for the comparison (--gold)");
+            return;
+        }
+        Injector injector = Guice.createInjector(new DatasetProvider(params));
+        CNNTang2015 model = injector.getInstance(CNNTang2015.class);
+        model.setAnnotationWorkers(params.annotationWorkers, params.annotationQueueSize);
+        if (params.cacheSentences) {
+            model.setSentenceCache(new SentenceCache(injector.getInstance(Configuration.class).getStorage()));
+        }
+        model.train(injector.getInstance(LabeledSentences.class));
+
+        new QuantizationComparison(model, ModelsComparison.readFile(params.goldFilename), params.threeClass).start();
+    }
+}
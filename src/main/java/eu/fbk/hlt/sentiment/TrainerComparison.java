@@ -0,0 +1,96 @@
+package eu.fbk.hlt.sentiment;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import eu.fbk.hlt.data.Configuration;
+import eu.fbk.hlt.data.LabeledSentences;
+import eu.fbk.hlt.sentiment.baseline.CNNTang2015;
+import eu.fbk.hlt.sentiment.util.DatasetProvider;
+import eu.fbk.hlt.sentiment.util.SentenceCache;
+import eu.fbk.hlt.sentiment.util.SentimentParameters;
+import org.deeplearning4j.eval.Evaluation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the throughput and the accuracy of the sequential and the Hogwild training
+ * Both trainers start from the same initialization and use the same test split (fixed seed),
+ *  on the dataset from the parameters and then on lorenzo.tweet and lorenzo.rnn
+ *
+ * With --cache-sentences the annotation is done once, so the throughput is mostly the one of the training
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class TrainerComparison {
+    final static Logger logger = LoggerFactory.getLogger(TrainerComparison.class);
+
+    public static final String[] DEFAULT_DATASETS = {"lorenzo.tweet", "lorenzo.rnn"};
+    public static final long DEFAULT_SEED = 42;
+
+    protected final SentimentParameters params;
+    protected final int threads;
+    protected final long seed;
+
+    public TrainerComparison(SentimentParameters params) {
+        this.params = params;
+        this.threads = params.trainingThreads > 1 ? params.trainingThreads : Runtime.getRuntime().availableProcessors();
+        this.seed = params.seed != null ? params.seed : DEFAULT_SEED;
+    }
+
+    /**
+     * Main workflow
+     */
+    public void start() throws Exception {
+        List<String> datasets = new ArrayList<>();
+        datasets.add(params.dataset);
+        for (String dataset : DEFAULT_DATASETS) {
+            if (!datasets.contains(dataset)) {
+                datasets.add(dataset);
+            }
+        }
+
+        List<String> report = new ArrayList<>();
+        for (String dataset : datasets) {
+            params.dataset = dataset;
+            Injector injector = Guice.createInjector(new DatasetProvider(params));
+            Run sequential = train(injector, 1);
+            Run hogwild = train(injector, threads);
+            report.add(String.format("%-14s sequential: %8.1f sent/s, accuracy %.4f, F1 %.4f", dataset,
+                sequential.throughput, sequential.evaluation.accuracy(), sequential.evaluation.f1()));
+            report.add(String.format("%-14s hogwild x%d: %7.1f sent/s, accuracy %.4f, F1 %.4f, speedup %.2fx", dataset, threads,
+                hogwild.throughput, hogwild.evaluation.accuracy(), hogwild.evaluation.f1(), hogwild.throughput / sequential.throughput));
+        }
+        report.forEach(logger::info);
+    }
+
+    private Run train(Injector injector, int threads) throws Exception {
+        CNNTang2015 model = injector.getInstance(CNNTang2015.class);
+        model.setAnnotationWorkers(params.annotationWorkers, params.annotationQueueSize);
+        if (params.cacheSentences) {
+            model.setSentenceCache(new SentenceCache(injector.getInstance(Configuration.class).getStorage()));
+        }
+        model.setSeed(seed);
+        model.setHogwildThreads(threads);
+        try (LabeledSentences dataset = injector.getInstance(LabeledSentences.class)) {
+            Evaluation evaluation = model.train(dataset);
+            return new Run(evaluation, model.getTrainingThroughput());
+        }
+    }
+
+    private static class Run {
+        final Evaluation evaluation;
+        final double throughput;
+
+        Run(Evaluation evaluation, double throughput) {
+            this.evaluation = evaluation;
+            this.throughput = throughput;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new TrainerComparison(new SentimentParameters(args)).start();
+    }
+}
@@ -2,14 +2,19 @@ package eu.fbk.hlt.sentiment.baseline;
 
 import com.google.inject.*;
 import com.google.inject.name.Named;
-import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import eu.fbk.hlt.data.Configuration;
 import eu.fbk.hlt.data.LabeledSentences;
 import eu.fbk.hlt.data.WordVectors;
 import eu.fbk.hlt.sentiment.AbstractModel;
 import eu.fbk.hlt.sentiment.nn.ConvolutionLayer;
+import eu.fbk.hlt.sentiment.nn.ExecutionPlan;
 import eu.fbk.hlt.sentiment.nn.Pipeline;
 import eu.fbk.hlt.sentiment.nn.duyu.*;
+import eu.fbk.hlt.sentiment.server.SentimentServer;
 import eu.fbk.hlt.sentiment.util.DatasetProvider;
+import eu.fbk.hlt.sentiment.util.HogwildTrainer;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
+import eu.fbk.hlt.sentiment.util.SentenceCache;
 import eu.fbk.hlt.sentiment.util.SentimentParameters;
 import org.apache.commons.cli.*;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -17,7 +22,10 @@ import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 /**
  * The definition of a Convolutional Neural Network for the sentence representation by Duyu Tang
@@ -40,29 +48,58 @@ public class CNNTang2015 extends AbstractModel {
     protected LabeledSentences dataset;
     protected ArrayList<Pipeline> net;
     protected Pipeline softmax;
+    protected ExecutionPlan plan;
+    protected LinearLayer linear;
+    protected double[] trainInput = new double[0];
+    protected final List<TrainingReplica> replicas = new ArrayList<>();
+    protected ExecutorService trainers;
+    protected final ThreadLocal<InferenceContext> contexts = ThreadLocal.withInitial(() -> {
+        try {
+            return new InferenceContext();
+        } catch (Exception e) {
+            throw new RuntimeException("Can't create the inference context", e);
+        }
+    });
 
     @Inject
-    public CNNTang2015(@Named("classes") List<String> classes, WordVectors embeddings, AnnotationPipeline pipeline) throws Exception {
-        super(classes, embeddings, pipeline);
+    public CNNTang2015(@Named("classes") List<String> classes, WordVectors embeddings, PipelineFactory pipelines) throws Exception {
+        super(classes, embeddings, pipelines);
         buildNeuralNet(embeddings.getDim(), embeddings.getDim());
     }
 
     private void buildNeuralNet(int wordDim, int lookupDim) throws Exception {
         this.net = new ArrayList<>();
         //Create a set of layers for each of the window sizes
-        Pipeline connect = new Pipeline(new MultiConnectLayer(new int[]{lookupDim, lookupDim, lookupDim}));
-        LinearLayer linear = new LinearLayer(lookupDim, classes.size());
+        List<ConvolutionLayer> convolutions = new ArrayList<>();
+        for (int windowSize = 1; windowSize <= 3; windowSize++) {
+            convolutions.add(new ConvolutionLayer(windowSize, wordDim, lookupDim));
+        }
+        linear = new LinearLayer(lookupDim, classes.size());
         linear.randomize(new Random(), -1.0 * RND_BASE, RND_BASE);
-        softmax = connect
-            .after(new AverageLayer(lookupDim*3, lookupDim))
+        softmax = connect(net, convolutions, linear);
+        plan = ExecutionPlan.compile(net);
+    }
+
+    /**
+     * Puts the average filter and the softmax on top of the convolutions
+     * @return the softmax part of the network
+     */
+    private Pipeline connect(List<Pipeline> net, List<ConvolutionLayer> convolutions, LinearLayer linear) throws Exception {
+        int lookupDim = linear.inputLength;
+        int[] inputDims = new int[convolutions.size()];
+        Arrays.fill(inputDims, lookupDim);
+        Pipeline connect = new Pipeline(new MultiConnectLayer(inputDims));
+        Pipeline softmax = connect
+            .after(new AverageLayer(lookupDim*convolutions.size(), lookupDim))
             .after(linear)
             .after(new SoftmaxLayer(classes.size()));
 
-        for (int windowSize = 1; windowSize <= 3; windowSize++) {
-            Pipeline net = new Pipeline(new ConvolutionLayer(windowSize, wordDim, lookupDim));
-            net.link(connect, windowSize-1);
-            this.net.add(net);
+        for (int i = 0; i < convolutions.size(); i++) {
+            Pipeline conv = new Pipeline(convolutions.get(i));
+            conv.link(connect, i);
+            net.add(conv);
         }
+        return softmax;
     }
 
     private int counter = 0;
@@ -70,18 +107,91 @@ public class CNNTang2015 extends AbstractModel {
 
     @Override
     protected void train(INDArray input, INDArray label) {
-        SoftmaxLayer layer = (SoftmaxLayer) softmax.getInputLayer();
+        trainInput = unfold(input, trainInput);
+        setInput(net, trainInput, unfoldedLength(input));
+        plan.forward();
+        lossV += backpropagate(plan, (SoftmaxLayer) softmax.getInputLayer(), getMaxIndex(label));
+        plan.update(LEARNING_RATE);
+        plan.clearGrad();
 
-        setInput(input);
-        for (Pipeline conv : net) {
-            conv.forward();
+        addSamples(1);
+    }
+
+    /**
+     * Synchronous data-parallel step: every replica accumulates the gradients of its own shard of the batch,
+     *  the gradients are summed pairwise in a tree and applied once to the shared weights
+     * The shards and the order of the sums depend only on the batch, so the result doesn't depend on the scheduling
+     */
+    @Override
+    protected void train(List<INDArray> inputs, List<INDArray> labels) {
+        if (replicas.isEmpty()) {
+            super.train(inputs, labels);
+            return;
+        }
+
+        int shards = Math.min(replicas.size(), inputs.size());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            TrainingReplica replica = replicas.get(i);
+            List<INDArray> shardInputs = inputs.subList(i * inputs.size() / shards, (i + 1) * inputs.size() / shards);
+            List<INDArray> shardLabels = labels.subList(i * inputs.size() / shards, (i + 1) * inputs.size() / shards);
+            tasks.add(() -> {
+                replica.accumulate(shardInputs, shardLabels);
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        //All-reduce: at each level the replica i takes the gradients of the replica i+stride
+        for (int stride = 1; stride < shards; stride *= 2) {
+            tasks.clear();
+            for (int i = 0; i + stride < shards; i += 2 * stride) {
+                TrainingReplica target = replicas.get(i);
+                TrainingReplica source = replicas.get(i + stride);
+                tasks.add(() -> {
+                    target.add(source);
+                    return null;
+                });
+            }
+            runAll(tasks);
+        }
+
+        //Weights are tied, so the update through the first replica is seen by all of them
+        replicas.get(0).update(LEARNING_RATE);
+        for (int i = 0; i < shards; i++) {
+            lossV += replicas.get(i).loss;
+        }
+        addSamples(inputs.size());
+    }
+
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : trainers.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Training was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Can't train the replica: "+e.getCause().getMessage(), e.getCause());
         }
+    }
 
-        int trueLabel = getMaxIndex(label);
-        lossV += -Math.log(layer.output[trueLabel]);
-        for (int i = 0; i < layer.outputG.length; i++) {
-            layer.outputG[i] = 0.0;
+    private void addSamples(int samples) {
+        int before = counter;
+        counter += samples;
+        if (counter / DEFAULT_BATCH_SIZE != before / DEFAULT_BATCH_SIZE) {
+            logger.info("lossC = "+(lossV/counter));
         }
+    }
+
+    /**
+     * Sets the gradient of the log-likelihood of the true label and propagates it through the network
+     * @return loss of the sample
+     */
+    private static double backpropagate(ExecutionPlan plan, SoftmaxLayer layer, int trueLabel) {
+        double loss = -Math.log(layer.output[trueLabel]);
+        Arrays.fill(layer.outputG, 0.0);
 
         double finalG = layer.output[trueLabel];
         if (finalG < RESULT_THESHOLD) {
@@ -89,21 +199,58 @@ public class CNNTang2015 extends AbstractModel {
         }
         layer.outputG[trueLabel] = 1.0 / finalG;
 
-        for (Pipeline conv : net) {
-            conv.backward();
+        plan.backward();
+        return loss;
+    }
+
+    @Override
+    public boolean supportsHogwild() {
+        return true;
+    }
+
+    @Override
+    protected HogwildTrainer.Worker createHogwildWorker() {
+        try {
+            return new HogwildReplica();
+        } catch (Exception e) {
+            throw new RuntimeException("Can't create the training replica", e);
         }
+    }
 
+    @Override
+    protected void initialize(Random random) {
         for (Pipeline conv : net) {
-            conv.update(LEARNING_RATE);
+            conv.getInputLayer().randomize(random, -1.0 * RND_BASE, RND_BASE);
         }
+        linear.randomize(random, -1.0 * RND_BASE, RND_BASE);
+    }
 
-        for (Pipeline conv : net) {
-            conv.clearGrad();
+    /**
+     * Enables the synchronous data-parallel training
+     * @param threads number of the network replicas, each one works on its own thread (1 disables it)
+     * @param batchSize number of the samples per update, the gradients of the batch are summed
+     */
+    public void setTrainingThreads(int threads, int batchSize) throws Exception {
+        if (trainers != null) {
+            trainers.shutdown();
+            trainers = null;
+        }
+        replicas.clear();
+        if (threads <= 1) {
+            trainingBatchSize = 1;
+            return;
         }
 
-        if (++counter % DEFAULT_BATCH_SIZE == 0) {
-            logger.info("lossC = "+(lossV/counter));
+        for (int i = 0; i < threads; i++) {
+            replicas.add(new TrainingReplica());
         }
+        trainers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "training");
+            thread.setDaemon(true);
+            return thread;
+        });
+        trainingBatchSize = Math.max(threads, batchSize);
+        logger.info("Training on "+threads+" threads with batches of "+trainingBatchSize+" samples");
     }
 
     private int getMaxIndex(INDArray array) {
@@ -120,33 +267,161 @@ public class CNNTang2015 extends AbstractModel {
         return maxInd;
     }
 
+    /**
+     * Predictions run on the network replica of the current thread, so they are safe to call concurrently
+     */
     @Override
     protected INDArray predict(INDArray input) {
-        setInput(input);
-        for (Pipeline conv : net) {
-            conv.forward();
-        }
-        return Nd4j.create(((SoftmaxLayer) softmax.getInputLayer()).output);
+        return Nd4j.create(contexts.get().predict(input));
     }
 
-    private void setInput(INDArray input) {
+    @Override
+    protected List<INDArray> predictMatrices(List<INDArray> inputs) {
+        return inputs.parallelStream().map(this::predict).collect(Collectors.toList());
+    }
+
+    /**
+     * Copies the sentence matrix into the buffer, padding it with zeros up to the widest window
+     * @return the same buffer or a larger one if the sentence didn't fit
+     */
+    private static double[] unfold(INDArray input, double[] buffer) {
         assert input.rows() > 0;
         assert input.columns() > 1;
 
         int dim = input.columns();
-        int size = input.rows() < 3 ? 3 : input.rows();
-        double[] rawInput = new double[dim*size];
+        int length = unfoldedLength(input);
+        if (buffer.length < length) {
+            buffer = new double[length];
+        }
         for (int i = 0; i < input.rows(); i++) {
             for (int j = 0; j < dim; j++) {
-                rawInput[j+i*dim] = input.getRow(i).getDouble(j);
+                buffer[j+i*dim] = input.getDouble(i, j);
             }
         }
-        for (int i = input.rows(); i  < size; i++) {
-            Arrays.fill(rawInput, i*dim, (i+1)*dim, 0.0);
-        }
+        Arrays.fill(buffer, input.rows()*dim, length, 0.0);
+        return buffer;
+    }
+
+    private static int unfoldedLength(INDArray input) {
+        return Math.max(3, input.rows()) * input.columns();
+    }
+
+    private static void setInput(List<Pipeline> net, double[] rawInput, int length) {
         for (Pipeline conv : net) {
             ConvolutionLayer layer = (ConvolutionLayer) conv.getInputLayer();
-            layer.setInput(rawInput);
+            layer.setInput(rawInput, length);
+        }
+    }
+
+    /**
+     * Replica of the network that owns all the activation buffers for a single thread
+     * The weights are tied to the trained network, so only one copy of them exists
+     */
+    protected class InferenceContext {
+        protected final ArrayList<Pipeline> net = new ArrayList<>();
+        protected final LinearLayer linear;
+        protected final SoftmaxLayer output;
+        protected final ExecutionPlan plan;
+        protected double[] input = new double[0];
+
+        protected InferenceContext() throws Exception {
+            List<ConvolutionLayer> convolutions = new ArrayList<>();
+            for (Pipeline conv : CNNTang2015.this.net) {
+                convolutions.add((ConvolutionLayer) conv.getInputLayer().cloneWithTiedParams());
+            }
+            linear = (LinearLayer) CNNTang2015.this.linear.cloneWithTiedParams();
+            output = (SoftmaxLayer) connect(net, convolutions, linear).getInputLayer();
+            plan = ExecutionPlan.compile(net);
+        }
+
+        /**
+         * @return class probabilities, the array is not reused
+         */
+        public double[] predict(INDArray sentence) {
+            input = unfold(sentence, input);
+            setInput(net, input, unfoldedLength(sentence));
+            plan.forward();
+            return output.output.clone();
+        }
+    }
+
+    /**
+     * Replica of the network for the Hogwild training, the same steps as the sequential training
+     *  but the updates go to the shared weights without any locking
+     */
+    protected class HogwildReplica extends InferenceContext implements HogwildTrainer.Worker {
+        protected int counter = 0;
+        protected double loss = 0.0;
+
+        protected HogwildReplica() throws Exception {
+        }
+
+        @Override
+        public void train(INDArray sentence, INDArray label) {
+            input = unfold(sentence, input);
+            setInput(net, input, unfoldedLength(sentence));
+            plan.forward();
+            loss += backpropagate(plan, output, getMaxIndex(label));
+            plan.update(LEARNING_RATE);
+            plan.clearGrad();
+
+            if (++counter % DEFAULT_BATCH_SIZE == 0) {
+                logger.info(Thread.currentThread().getName()+" lossC = "+(loss/counter));
+            }
+        }
+    }
+
+    /**
+     * Replica of the network that also accumulates the gradients of the samples it sees
+     * The gradients are kept per replica, the weights are tied to the trained network
+     * Only the dense gradients of the linear layers are reduced: the network has no lookup layer
+     *  (the embeddings come in as fixed input vectors), so there are no sparse embedding gradients to merge
+     */
+    protected class TrainingReplica extends InferenceContext {
+        protected final List<LinearLayer> parameters = new ArrayList<>();
+        protected double loss;
+
+        protected TrainingReplica() throws Exception {
+            for (Pipeline conv : net) {
+                parameters.add(((ConvolutionLayer) conv.getInputLayer()).getLinear());
+            }
+            parameters.add(linear);
+        }
+
+        /**
+         * Replaces the gradients of the replica with the sum of the gradients of the samples
+         */
+        public void accumulate(List<INDArray> inputs, List<INDArray> labels) {
+            plan.clearGrad();
+            loss = 0.0;
+            for (int i = 0; i < inputs.size(); i++) {
+                input = unfold(inputs.get(i), input);
+                setInput(net, input, unfoldedLength(inputs.get(i)));
+                plan.forward();
+                loss += backpropagate(plan, output, getMaxIndex(labels.get(i)));
+            }
+        }
+
+        /**
+         * Adds the gradients of the other replica to the gradients of this one
+         */
+        public void add(TrainingReplica other) {
+            for (int p = 0; p < parameters.size(); p++) {
+                LinearLayer target = parameters.get(p);
+                LinearLayer source = other.parameters.get(p);
+                for (int i = 0; i < target.WG.length; i++) {
+                    target.WG[i] += source.WG[i];
+                }
+                for (int i = 0; i < target.bG.length; i++) {
+                    target.bG[i] += source.bG[i];
+                }
+            }
+        }
+
+        public void update(double learningRate) {
+            for (LinearLayer layer : parameters) {
+                layer.update(learningRate);
+            }
         }
     }
 
@@ -156,12 +431,26 @@ public class CNNTang2015 extends AbstractModel {
      *  of a custom WordVectors construction
      *  via the DatasetProvider class
      */
-    public static void main(String[] args) throws ParseException {
+    public static void main(String[] args) throws Exception {
         SentimentParameters params = new SentimentParameters(args);
         Injector injector = Guice.createInjector(new DatasetProvider(params));
         CNNTang2015 project = injector.getInstance(CNNTang2015.class);
+        project.setAnnotationWorkers(params.annotationWorkers, params.annotationQueueSize);
+        if (params.seed != null) {
+            project.setSeed(params.seed);
+        }
+        if (params.hogwild) {
+            project.setHogwildThreads(params.trainingThreads);
+        } else {
+            project.setTrainingThreads(params.trainingThreads, params.trainingBatchSize);
+        }
+        if (params.cacheSentences) {
+            project.setSentenceCache(new SentenceCache(injector.getInstance(Configuration.class).getStorage()));
+        }
         project.train(injector.getInstance(LabeledSentences.class));
-        if (params.interactiveMode) {
+        if (params.serverMode) {
+            new SentimentServer(project, params.serverPort, params.maxBatchSize, params.maxBatchLatency, params.enableStatistics).start();
+        } else if (params.interactiveMode) {
             project.interactive();
         }
     }
@@ -0,0 +1,341 @@
+package eu.fbk.hlt.sentiment.baseline;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import eu.fbk.hlt.data.Configuration;
+import eu.fbk.hlt.data.LabeledSentences;
+import eu.fbk.hlt.data.WordVectors;
+import eu.fbk.hlt.sentiment.AbstractModel;
+import eu.fbk.hlt.sentiment.nn.ExecutionPlan;
+import eu.fbk.hlt.sentiment.nn.Gemm;
+import eu.fbk.hlt.sentiment.nn.Pipeline;
+import eu.fbk.hlt.sentiment.nn.duyu.LinearLayer;
+import eu.fbk.hlt.sentiment.nn.duyu.SoftmaxLayer;
+import eu.fbk.hlt.sentiment.nn.duyu.combinedlayer.FusedLSTMLayer;
+import eu.fbk.hlt.sentiment.server.SentimentServer;
+import eu.fbk.hlt.sentiment.util.DatasetProvider;
+import eu.fbk.hlt.sentiment.util.HogwildTrainer;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
+import eu.fbk.hlt.sentiment.util.SentenceCache;
+import eu.fbk.hlt.sentiment.util.SentimentParameters;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Recurrent baseline: the cell of SimplifiedLSTMLayer (h_t = c_t) runs over the words of the sentence,
+ *  the last state goes through a linear layer and a softmax
+ *
+ * The whole sentence is processed by one object: the input projections of all the words are computed
+ *  with a single matrix multiplication, so each step only adds the product of the recurrent weights
+ *  with the previous state. The states of the last steps are kept in ring buffers for the truncated
+ *  back propagation through time, the rest of the sentence only contributes through the final state
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class LSTMSentenceModel extends AbstractModel {
+    final static Logger logger = LoggerFactory.getLogger(LSTMSentenceModel.class);
+
+    public static final double RESULT_THESHOLD = 0.001;
+    public static final double LEARNING_RATE = 0.03;
+    public static final double RND_BASE = -0.01;
+    public static final int DEFAULT_BPTT = 20;
+
+    protected final int hiddenLength;
+    //Input, forget and candidate gates stacked in [3h x 2h], the first h columns are applied to the word, the rest to the state
+    protected LinearLayer gates;
+    protected LinearLayer linear;
+    protected int bpttSteps = DEFAULT_BPTT;
+    protected Workspace training;
+    protected final ThreadLocal<Workspace> contexts = ThreadLocal.withInitial(this::createWorkspace);
+
+    @Inject
+    public LSTMSentenceModel(@Named("classes") List<String> classes, WordVectors embeddings, PipelineFactory pipelines) throws Exception {
+        super(classes, embeddings, pipelines);
+        hiddenLength = embeddings.getDim();
+        gates = new LinearLayer(2 * hiddenLength, 3 * hiddenLength);
+        linear = new LinearLayer(hiddenLength, classes.size());
+        initialize(new Random());
+        training = new Workspace();
+    }
+
+    private int counter = 0;
+    private double lossV = 0.0;
+
+    @Override
+    protected void train(INDArray input, INDArray label) {
+        training.forward(input);
+        lossV += training.backward(getMaxIndex(label));
+        training.update(LEARNING_RATE);
+        training.clearGrad();
+
+        if (++counter % DEFAULT_BATCH_SIZE == 0) {
+            logger.info("lossC = "+(lossV/counter));
+        }
+    }
+
+    @Override
+    public boolean supportsHogwild() {
+        return true;
+    }
+
+    @Override
+    protected HogwildTrainer.Worker createHogwildWorker() {
+        Workspace workspace = createWorkspace();
+        return (input, label) -> {
+            workspace.forward(input);
+            workspace.backward(getMaxIndex(label));
+            workspace.update(LEARNING_RATE);
+            workspace.clearGrad();
+        };
+    }
+
+    /**
+     * Predictions run on the workspace of the current thread, so they are safe to call concurrently
+     */
+    @Override
+    protected INDArray predict(INDArray input) {
+        return Nd4j.create(contexts.get().forward(input).clone());
+    }
+
+    @Override
+    protected List<INDArray> predictMatrices(List<INDArray> inputs) {
+        return inputs.parallelStream().map(this::predict).collect(Collectors.toList());
+    }
+
+    @Override
+    protected void initialize(Random random) {
+        gates.randomize(random, -1.0 * RND_BASE, RND_BASE);
+        linear.randomize(random, -1.0 * RND_BASE, RND_BASE);
+    }
+
+    /**
+     * @param steps number of the last steps the gradient is propagated through (0 for the whole sentence)
+     */
+    public void setBpttSteps(int steps) {
+        this.bpttSteps = Math.max(0, steps);
+    }
+
+    private int getMaxIndex(INDArray array) {
+        int maxInd = 0;
+        double max = array.getDouble(maxInd);
+
+        for (int i = 1; i < array.columns(); i++) {
+            if (array.getDouble(i) > max) {
+                maxInd = i;
+                max = array.getDouble(maxInd);
+            }
+        }
+
+        return maxInd;
+    }
+
+    private Workspace createWorkspace() {
+        try {
+            return new Workspace();
+        } catch (Exception e) {
+            throw new RuntimeException("Can't create the workspace", e);
+        }
+    }
+
+    private static double[] grow(double[] buffer, int length) {
+        return buffer.length < length ? new double[length] : buffer;
+    }
+
+    /**
+     * Buffers for running the network over a sentence on a single thread
+     * The weights are tied to the model, the gradients belong to the workspace
+     * All the buffers grow to the longest sentence seen, after that nothing is allocated
+     */
+    protected class Workspace {
+        protected final LinearLayer gates;
+        protected final LinearLayer linear;
+        protected final SoftmaxLayer softmax;
+        protected final ExecutionPlan top;
+        //The current state is the input of the linear layer, so the last one is classified without copying
+        protected final double[] hidden;
+        protected final double[] hiddenG;
+
+        //Words and the input projections of the gates, one row per step
+        protected double[] input = new double[0];
+        protected double[] projections = new double[0];
+        protected int length;
+
+        //Ring buffers of the last steps: gate activations, previous state, gate gradients
+        protected double[] activations = new double[0];
+        protected double[] history = new double[0];
+        protected double[] deltas = new double[0];
+        protected int ring;
+
+        protected Workspace() throws Exception {
+            gates = (LinearLayer) LSTMSentenceModel.this.gates.cloneWithTiedParams();
+            linear = (LinearLayer) LSTMSentenceModel.this.linear.cloneWithTiedParams();
+            softmax = new SoftmaxLayer(classes.size());
+            Pipeline classifier = new Pipeline(linear);
+            classifier.after(softmax);
+            top = classifier.compile();
+            hidden = linear.input;
+            hiddenG = new double[hiddenLength];
+        }
+
+        /**
+         * @return class probabilities, the array is reused by the next call
+         */
+        public double[] forward(INDArray sentence) {
+            int h = hiddenLength;
+            int h3 = 3 * h;
+            length = sentence.rows();
+            ring = bpttSteps > 0 ? Math.min(bpttSteps, length) : length;
+            input = grow(input, length * h);
+            projections = grow(projections, length * h3);
+            activations = grow(activations, ring * h3);
+            history = grow(history, ring * h);
+            deltas = grow(deltas, ring * h3);
+
+            for (int t = 0; t < length; t++) {
+                for (int j = 0; j < h; j++) {
+                    input[t * h + j] = sentence.getDouble(t, j);
+                }
+                System.arraycopy(gates.b, 0, projections, t * h3, h3);
+            }
+            //Input part of the gates for all the steps at once
+            Gemm.gemmNT(length, h3, h,
+                input, 0, h,
+                gates.W, 0, 2 * h,
+                projections, 0, h3);
+
+            Arrays.fill(hidden, 0.0);
+            for (int t = 0; t < length; t++) {
+                int z = t * h3;
+                int slot = t % ring;
+                int act = slot * h3;
+                int prev = slot * h;
+                System.arraycopy(hidden, 0, history, prev, h);
+                //Recurrent part of the gates, the only product left for each step
+                Gemm.gemmNT(1, h3, h,
+                    hidden, 0, h,
+                    gates.W, h, 2 * h,
+                    projections, z, h3);
+                for (int i = 0; i < h; i++) {
+                    double a = FusedLSTMLayer.sigmoid(projections[z + i]);
+                    double f = FusedLSTMLayer.sigmoid(projections[z + h + i]);
+                    double c = FusedLSTMLayer.tanh(projections[z + 2 * h + i]);
+                    activations[act + i] = a;
+                    activations[act + h + i] = f;
+                    activations[act + 2 * h + i] = c;
+                    hidden[i] = a * c + f * history[prev + i];
+                }
+            }
+
+            top.forward();
+            return softmax.output;
+        }
+
+        /**
+         * Propagates the log-likelihood of the true label through the last steps of the sentence
+         * @return loss of the sample
+         */
+        public double backward(int trueLabel) {
+            double loss = -Math.log(softmax.output[trueLabel]);
+            Arrays.fill(softmax.outputG, 0.0);
+            double finalG = softmax.output[trueLabel];
+            if (finalG < RESULT_THESHOLD) {
+                finalG = RESULT_THESHOLD;
+            }
+            softmax.outputG[trueLabel] = 1.0 / finalG;
+            top.backward();
+
+            int h = hiddenLength;
+            int h3 = 3 * h;
+            int start = length - ring;
+            System.arraycopy(linear.inputG, 0, hiddenG, 0, h);
+            for (int t = length - 1; t >= start; t--) {
+                int slot = t % ring;
+                int act = slot * h3;
+                int prev = slot * h;
+                for (int i = 0; i < h; i++) {
+                    double a = activations[act + i];
+                    double f = activations[act + h + i];
+                    double c = activations[act + 2 * h + i];
+                    double g = hiddenG[i];
+                    deltas[act + i] = g * c * a * (1.0f - a);
+                    deltas[act + h + i] = g * history[prev + i] * f * (1.0f - f);
+                    deltas[act + 2 * h + i] = (1.0 - c * c) * (g * a);
+                    //The state also goes straight to the next one through the forget gate
+                    hiddenG[i] = g * f;
+                }
+                if (t > start) {
+                    Gemm.gemmNN(1, h, h3,
+                        deltas, act, h3,
+                        gates.W, h, 2 * h,
+                        hiddenG, 0, h);
+                }
+            }
+
+            //Weight gradients of all the steps at once, split where the ring wraps around
+            for (int t = start; t < length; ) {
+                int slot = t % ring;
+                int steps = Math.min(length - t, ring - slot);
+                Gemm.gemmTN(h3, h, steps,
+                    deltas, slot * h3, h3,
+                    input, t * h, h,
+                    gates.WG, 0, 2 * h);
+                Gemm.gemmTN(h3, h, steps,
+                    deltas, slot * h3, h3,
+                    history, slot * h, h,
+                    gates.WG, h, 2 * h);
+                for (int s = slot; s < slot + steps; s++) {
+                    for (int i = 0; i < h3; i++) {
+                        gates.bG[i] += deltas[s * h3 + i];
+                    }
+                }
+                t += steps;
+            }
+            return loss;
+        }
+
+        public void update(double learningRate) {
+            gates.update(learningRate);
+            top.update(learningRate);
+        }
+
+        public void clearGrad() {
+            gates.clearGrad();
+            top.clearGrad();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SentimentParameters params = new SentimentParameters(args);
+        Injector injector = Guice.createInjector(new DatasetProvider(params));
+        LSTMSentenceModel project = injector.getInstance(LSTMSentenceModel.class);
+        project.setAnnotationWorkers(params.annotationWorkers, params.annotationQueueSize);
+        if (params.cacheSentences) {
+            project.setSentenceCache(new SentenceCache(injector.getInstance(Configuration.class).getStorage()));
+        }
+        if (params.seed != null) {
+            project.setSeed(params.seed);
+        }
+        project.setBpttSteps(params.bpttSteps);
+        if (params.hogwild) {
+            project.setHogwildThreads(params.trainingThreads);
+        } else if (params.trainingThreads > 1) {
+            //The mini-batches of this model are trained sample by sample, only the Hogwild training is parallel
+            throw new IllegalArgumentException("LSTMSentenceModel trains on several threads only with --hogwild");
+        }
+        project.train(injector.getInstance(LabeledSentences.class));
+        if (params.serverMode) {
+            new SentimentServer(project, params.serverPort, params.maxBatchSize, params.maxBatchLatency, params.enableStatistics).start();
+        } else if (params.interactiveMode) {
+            project.interactive();
+        }
+    }
+}
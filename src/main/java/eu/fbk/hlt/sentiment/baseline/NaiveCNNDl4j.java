@@ -2,11 +2,11 @@ package eu.fbk.hlt.sentiment.baseline;
 
 import com.google.inject.*;
 import com.google.inject.name.Named;
-import edu.stanford.nlp.pipeline.AnnotationPipeline;
 import eu.fbk.hlt.data.LabeledSentences;
 import eu.fbk.hlt.data.WordVectors;
 import eu.fbk.hlt.sentiment.AbstractModel;
 import eu.fbk.hlt.sentiment.util.DatasetProvider;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
 import eu.fbk.hlt.sentiment.util.SentimentParameters;
 import eu.fbk.hlt.sentiment.util.Stopwatch;
 import org.apache.commons.cli.ParseException;
@@ -54,8 +54,8 @@ public class NaiveCNNDl4j extends AbstractModel {
     protected int lookupDim = embeddings.getDim() * DEFAULT_DIM_MULTIPLIER;
 
     @Inject
-    public NaiveCNNDl4j(@Named("classes") List<String> classes, WordVectors embeddings, AnnotationPipeline pipeline) throws Exception {
-        super(classes, embeddings, pipeline);
+    public NaiveCNNDl4j(@Named("classes") List<String> classes, WordVectors embeddings, PipelineFactory pipelines) throws Exception {
+        super(classes, embeddings, pipelines);
     }
 
     private void buildNeuralNet() throws Exception {
@@ -4,121 +4,182 @@ import eu.fbk.hlt.sentiment.nn.duyu.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
 
 /**
  * A convolution layer
- * Which uses a sliding window over an unbound input to populate set of LinearTanh layers with averaging in the end
+ * Slides a window over an unbound input applying the same linear transformation and tanh at each position,
+ *  the results are averaged in the end
+ *
+ * All the window positions share one workspace that grows to the longest input seen,
+ *  so once it is warmed up the layer doesn't allocate anything
  *
  * @author Yaroslav Nechaev (remper@me.com)
  */
 public class ConvolutionLayer implements NNInterface {
     final static Logger logger = LoggerFactory.getLogger(ConvolutionLayer.class);
 
-    protected LinearLayer linearProt;
-    protected TanhLayer tanhProt;
+    protected LinearLayer linear;
     protected int elementDim;
     protected int windowDim;
     protected int outputDim;
-    protected List<Pipeline> layers = new ArrayList<>();
-    protected NNInterface lastLayer;
-    protected NNInterface nextLayer;
-    protected int nextId;
 
     protected double[] input;
-    protected double[] inputG;
+    protected double[] inputG = new double[0];
+    protected int inputLength;
+    protected int positions;
+
+    //Activations and their gradients of each window position one after another
+    protected double[] activations = new double[0];
+    protected double[] deltas = new double[0];
+
+    protected double[] output;
+    protected double[] outputG;
 
     public ConvolutionLayer(int windowDim, int elementDim, int outputDim) {
         assert windowDim > 0 && elementDim > 0 && outputDim > 0;
         Random rnd = new Random();
         double rndBase = -0.01;
-        linearProt = new LinearLayer(windowDim * elementDim, outputDim);
-        linearProt.randomize(rnd, -1.0 * rndBase, rndBase);
-        tanhProt = new TanhLayer(outputDim);
+        linear = new LinearLayer(windowDim * elementDim, outputDim);
+        linear.randomize(rnd, -1.0 * rndBase, rndBase);
         this.elementDim = elementDim;
         this.windowDim = windowDim;
         this.outputDim = outputDim;
+        this.output = new double[outputDim];
+        this.outputG = new double[outputDim];
+    }
+
+    private ConvolutionLayer(ConvolutionLayer prototype) {
+        linear = (LinearLayer) prototype.linear.cloneWithTiedParams();
+        elementDim = prototype.elementDim;
+        windowDim = prototype.windowDim;
+        outputDim = prototype.outputDim;
+        output = new double[outputDim];
+        outputG = new double[outputDim];
     }
 
     @Override
     public void randomize(Random r, double min, double max) {
+        linear.randomize(r, min, max);
+    }
 
+    /**
+     * @return linear transformation applied at each position, holds the parameters and their gradients
+     */
+    public LinearLayer getLinear() {
+        return linear;
     }
 
     public void setInput(double[] input) {
+        setInput(input, input.length);
+    }
+
+    /**
+     * @param length number of the meaningful values at the beginning of the input, the rest is ignored
+     */
+    public void setInput(double[] input, int length) {
+        assert length % elementDim == 0;
+        assert length >= windowDim * elementDim;
         this.input = input;
-        this.inputG = new double[input.length];
-        //The size of an input is unknown up to this point so actual layer generation occurs here
-        try {
-            generateLayers(input.length);
-        } catch (Exception e) {
-            logger.error("Can't generate layers", e);
+        this.inputLength = length;
+        this.positions = length / elementDim - windowDim + 1;
+        //The size of an input is unknown up to this point so the workspace is adjusted here
+        if (inputG.length < length) {
+            inputG = new double[length];
         }
-        //Fill the inputs of each underlying layer
-        int offset = 0;
-        for (Pipeline layer : layers) {
-            double[] output = (double[]) layer.getInputLayer().getInput(0);
-            System.arraycopy(input, offset, output, 0, output.length);
-            offset += elementDim;
+        if (activations.length < positions * outputDim) {
+            activations = new double[positions * outputDim];
+            deltas = new double[positions * outputDim];
         }
     }
 
+    /**
+     * The windows are the rows of the im2col unfolding of the sentence matrix. Since the window slides
+     *  by one element, the unfolding is the input itself read with the row stride of one element,
+     *  so the convolution is a single multiplication by the transposed weights
+     */
     @Override
     public void forward() {
-        assert layers.size() > 0;
-        layers.forEach(value -> value.forward());
-    }
-
-    private void generateLayers(int inputDim) throws Exception {
-        assert inputDim % elementDim == 0;
-        assert inputDim >= windowDim * elementDim;
-        layers.clear();
-        int length = inputDim / elementDim - windowDim + 1;
-        int[] outputDims = new int[length];
-        Arrays.fill(outputDims, outputDim);
-        Pipeline connect = new Pipeline(new MultiConnectLayer(outputDims));
-        for (int i = 0; i < length; i++) {
-            Pipeline pipeline = new Pipeline((LinearLayer) linearProt.cloneWithTiedParams());
-            pipeline.after((TanhLayer) tanhProt.cloneWithTiedParams()).after(connect, i);
-            layers.add(pipeline);
+        assert positions > 0;
+        double[] b = linear.b;
+        for (int position = 0; position < positions; position++) {
+            System.arraycopy(b, 0, activations, position * outputDim, outputDim);
+        }
+        Gemm.gemmNT(positions, outputDim, windowDim * elementDim,
+            input, 0, elementDim,
+            linear.W, 0, windowDim * elementDim,
+            activations, 0, outputDim);
+
+        //Fused tanh and average over the positions
+        Arrays.fill(output, 0.0);
+        for (int position = 0; position < positions; position++) {
+            int base = position * outputDim;
+            for (int i = 0; i < outputDim; i++) {
+                double activation = tanh(activations[base + i]);
+                activations[base + i] = activation;
+                output[i] += activation;
+            }
+        }
+        for (int i = 0; i < outputDim; i++) {
+            output[i] /= positions;
         }
-        lastLayer = new AverageLayer(outputDim*length, outputDim);
-        connect.after(lastLayer);
-        lastLayer.link(nextLayer, nextId);
     }
 
     @Override
     public void backward() {
-        assert layers.size() > 0;
-        layers.forEach(value -> value.backward());
+        assert positions > 0;
+        double[] bG = linear.bG;
+        //Gradient of the average followed by the gradient of tanh at each position
+        for (int position = 0; position < positions; position++) {
+            int base = position * outputDim;
+            for (int i = 0; i < outputDim; i++) {
+                double activation = activations[base + i];
+                double delta = outputG[i] / positions * (1.0 - activation * activation);
+                deltas[base + i] = delta;
+                bG[i] += delta;
+            }
+        }
+        int windowLength = windowDim * elementDim;
+        //Weights gradient: deltas transposed times the unfolded input
+        Gemm.gemmTN(outputDim, windowLength, positions,
+            deltas, 0, outputDim,
+            input, 0, elementDim,
+            linear.WG, 0, windowLength);
+        //Input gradient: deltas times the weights, folded back onto the overlapping windows
+        Gemm.gemmNN(positions, windowLength, outputDim,
+            deltas, 0, outputDim,
+            linear.W, 0, windowLength,
+            inputG, 0, elementDim);
     }
 
     @Override
     public void update(double learningRate) {
-        assert layers.size() > 0;
-        layers.forEach(value -> value.update(learningRate));
+        linear.update(learningRate);
     }
 
     @Override
     public void updateAdaGrad(double learningRate, int batchsize) {
-
+        linear.updateAdaGrad(learningRate, batchsize);
     }
 
     @Override
     public void clearGrad() {
-        layers.forEach(value -> value.clearGrad());
+        linear.clearGrad();
+        Arrays.fill(outputG, 0.0);
+        Arrays.fill(inputG, 0, Math.min(inputLength, inputG.length), 0.0);
     }
 
     @Override
     public void link(NNInterface nextLayer, int id) throws Exception {
-        this.nextLayer = nextLayer;
-        this.nextId = id;
-        if (lastLayer != null) {
-            lastLayer.link(nextLayer, nextId);
+        double[] nextI = (double[]) nextLayer.getInput(id);
+        double[] nextIG = (double[]) nextLayer.getInputG(id);
+
+        if (nextI.length != output.length || nextIG.length != outputG.length) {
+            throw new Exception("The Lengths of linked layers do not match.");
         }
+        output = nextI;
+        outputG = nextIG;
     }
 
     @Override
@@ -133,9 +194,12 @@ public class ConvolutionLayer implements NNInterface {
 
     @Override
     public Object getOutput(int id) {
-        return lastLayer.getOutput(id);
+        return output;
     }
 
+    /**
+     * @return gradient of the input, only the values up to the length of the current input are meaningful
+     */
     @Override
     public Object getInputG(int id) {
         return inputG;
@@ -143,11 +207,23 @@ public class ConvolutionLayer implements NNInterface {
 
     @Override
     public Object getOutputG(int id) {
-        return lastLayer.getOutputG(id);
+        return outputG;
     }
 
     @Override
     public Object cloneWithTiedParams() {
-        return null;
+        return new ConvolutionLayer(this);
+    }
+
+    /**
+     * Same numerically stable form as in TanhLayer
+     */
+    private static double tanh(double value) {
+        if (value > 0) {
+            double x = Math.exp(-2.0 * value);
+            return (1.0 - x) / (1.0 + x);
+        }
+        double x = Math.exp(2.0 * value);
+        return (x - 1.0) / (x + 1.0);
     }
 }
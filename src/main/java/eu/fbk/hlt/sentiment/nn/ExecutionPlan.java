@@ -0,0 +1,130 @@
+package eu.fbk.hlt.sentiment.nn;
+
+import eu.fbk.hlt.sentiment.nn.duyu.NNInterface;
+
+import java.util.*;
+
+/**
+ * A pipeline graph compiled into flat arrays of layers
+ * The layers are sorted topologically once, so each pass is a single loop in which every layer runs exactly once,
+ *  even if it can be reached through several paths (e.g. a MultiConnectLayer joining a number of pipelines)
+ *
+ * The plan doesn't follow the changes to the pipelines made after the compilation
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class ExecutionPlan {
+    //Every layer comes after all the layers that feed it
+    protected final NNInterface[] layers;
+    protected final Set<NNInterface> outputLayers;
+
+    protected ExecutionPlan(NNInterface[] layers, Set<NNInterface> outputLayers) {
+        this.layers = layers;
+        this.outputLayers = outputLayers;
+    }
+
+    /**
+     * @param roots pipelines that receive the input, the graph reachable from them is compiled
+     */
+    public static ExecutionPlan compile(Collection<Pipeline> roots) {
+        //Reverse post-order of a depth-first search, the same layer is visited once even if it's wrapped in several pipelines
+        Map<NNInterface, Boolean> visited = new IdentityHashMap<>();
+        Set<NNInterface> outputLayers = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayList<NNInterface> postOrder = new ArrayList<>();
+        List<Pipeline> ordered = new ArrayList<>(roots);
+        //Visited in the reverse order, so that the roots keep their order after the reversal
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            visit(ordered.get(i), visited, postOrder, outputLayers);
+        }
+        Collections.reverse(postOrder);
+        return new ExecutionPlan(postOrder.toArray(new NNInterface[postOrder.size()]), Collections.unmodifiableSet(outputLayers));
+    }
+
+    public static ExecutionPlan compile(Pipeline... roots) {
+        return compile(Arrays.asList(roots));
+    }
+
+    private static void visit(Pipeline pipeline, Map<NNInterface, Boolean> visited,
+                              List<NNInterface> postOrder, Set<NNInterface> outputLayers) {
+        Boolean finished = visited.get(pipeline.layer);
+        if (finished != null) {
+            if (!finished) {
+                throw new IllegalStateException("The pipeline graph contains a cycle");
+            }
+            return;
+        }
+        visited.put(pipeline.layer, false);
+        //Children are visited in the reverse order, so that the siblings keep their order after the reversal
+        for (int i = pipeline.pipelines.size() - 1; i >= 0; i--) {
+            visit(pipeline.pipelines.get(i), visited, postOrder, outputLayers);
+        }
+        if (pipeline.pipelines.isEmpty()) {
+            outputLayers.add(pipeline.layer);
+        }
+        visited.put(pipeline.layer, true);
+        postOrder.add(pipeline.layer);
+    }
+
+    /**
+     * Do full forward propagation pass through the graph
+     */
+    public void forward() {
+        for (NNInterface layer : layers) {
+            layer.forward();
+        }
+    }
+
+    /**
+     * Do full back propagation pass through the graph (calculate gradients)
+     * The gradients of the parameters are added to the ones of the previous passes until clearGrad()
+     */
+    public void backward() {
+        for (int i = layers.length - 1; i >= 0; i--) {
+            layers[i].backward();
+        }
+    }
+
+    /**
+     * Update weights according to the precomputed gradient
+     */
+    public void update(double learningRate) {
+        for (NNInterface layer : layers) {
+            layer.update(learningRate);
+        }
+    }
+
+    public void updateAdaGrad(double learningRate, int batchSize) {
+        for (NNInterface layer : layers) {
+            layer.updateAdaGrad(learningRate, batchSize);
+        }
+    }
+
+    /**
+     * Clear gradient in preparation for the next iteration
+     */
+    public void clearGrad() {
+        for (NNInterface layer : layers) {
+            layer.clearGrad();
+        }
+    }
+
+    /**
+     * Calculate gradients, update weights, clear gradients
+     */
+    public void fullBackward(double learningRate) {
+        backward();
+        update(learningRate);
+        clearGrad();
+    }
+
+    /**
+     * @return layers in the order of the forward pass
+     */
+    public List<NNInterface> getLayers() {
+        return Collections.unmodifiableList(Arrays.asList(layers));
+    }
+
+    public Set<NNInterface> getOutputLayers() {
+        return outputLayers;
+    }
+}
@@ -0,0 +1,163 @@
+package eu.fbk.hlt.sentiment.nn;
+
+/**
+ * Blocked general matrix multiplication kernels: C += op(A)·op(B), where C is M×N and op(A)·op(B) is over K
+ * All the operands are row-major and addressed with an offset and a row stride, so overlapping rows
+ *  (e.g. the windows of an unfolded sentence) can be multiplied without copying
+ *
+ * The inner kernel keeps a 4×4 tile of C in registers, the depth is processed in blocks
+ *  so that the rows of the operands stay in cache while the tiles are swept
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public final class Gemm {
+    public static final int TILE = 4;
+    public static final int DEPTH_BLOCK = 256;
+
+    private Gemm() {}
+
+    /**
+     * C[m][n] += sum_k A[m][k]·B[n][k]
+     */
+    public static void gemmNT(int M, int N, int K,
+                              double[] a, int aOffset, int lda,
+                              double[] b, int bOffset, int ldb,
+                              double[] c, int cOffset, int ldc) {
+        int mTiles = M - M % TILE;
+        int nTiles = N - N % TILE;
+        for (int k0 = 0; k0 < K; k0 += DEPTH_BLOCK) {
+            int k1 = Math.min(K, k0 + DEPTH_BLOCK);
+            //Rows of B are the outer loop, so they are reused for all the rows of A
+            for (int n = 0; n < nTiles; n += TILE) {
+                int b0 = bOffset + n * ldb, b1 = b0 + ldb, b2 = b1 + ldb, b3 = b2 + ldb;
+                for (int m = 0; m < mTiles; m += TILE) {
+                    int a0 = aOffset + m * lda, a1 = a0 + lda, a2 = a1 + lda, a3 = a2 + lda;
+                    double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                    double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+                    double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+                    double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+                    for (int k = k0; k < k1; k++) {
+                        double x0 = a[a0 + k], x1 = a[a1 + k], x2 = a[a2 + k], x3 = a[a3 + k];
+                        double y0 = b[b0 + k], y1 = b[b1 + k], y2 = b[b2 + k], y3 = b[b3 + k];
+                        c00 += x0 * y0; c01 += x0 * y1; c02 += x0 * y2; c03 += x0 * y3;
+                        c10 += x1 * y0; c11 += x1 * y1; c12 += x1 * y2; c13 += x1 * y3;
+                        c20 += x2 * y0; c21 += x2 * y1; c22 += x2 * y2; c23 += x2 * y3;
+                        c30 += x3 * y0; c31 += x3 * y1; c32 += x3 * y2; c33 += x3 * y3;
+                    }
+                    int c0 = cOffset + m * ldc + n, c1 = c0 + ldc, c2 = c1 + ldc, c3 = c2 + ldc;
+                    c[c0] += c00; c[c0 + 1] += c01; c[c0 + 2] += c02; c[c0 + 3] += c03;
+                    c[c1] += c10; c[c1 + 1] += c11; c[c1 + 2] += c12; c[c1 + 3] += c13;
+                    c[c2] += c20; c[c2 + 1] += c21; c[c2 + 2] += c22; c[c2 + 3] += c23;
+                    c[c3] += c30; c[c3 + 1] += c31; c[c3 + 2] += c32; c[c3 + 3] += c33;
+                }
+            }
+            //Edges that don't fill a whole tile
+            for (int m = 0; m < M; m++) {
+                int row = aOffset + m * lda;
+                for (int n = m < mTiles ? nTiles : 0; n < N; n++) {
+                    int column = bOffset + n * ldb;
+                    double sum = 0;
+                    for (int k = k0; k < k1; k++) {
+                        sum += a[row + k] * b[column + k];
+                    }
+                    c[cOffset + m * ldc + n] += sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * C[m][n] += sum_k A[k][m]·B[k][n]
+     */
+    public static void gemmTN(int M, int N, int K,
+                              double[] a, int aOffset, int lda,
+                              double[] b, int bOffset, int ldb,
+                              double[] c, int cOffset, int ldc) {
+        int mTiles = M - M % TILE;
+        int nTiles = N - N % TILE;
+        for (int k0 = 0; k0 < K; k0 += DEPTH_BLOCK) {
+            int k1 = Math.min(K, k0 + DEPTH_BLOCK);
+            for (int m = 0; m < mTiles; m += TILE) {
+                int r0 = cOffset + m * ldc, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+                for (int n = 0; n < nTiles; n += TILE) {
+                    double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                    double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+                    double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+                    double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+                    for (int k = k0; k < k1; k++) {
+                        int ak = aOffset + k * lda + m;
+                        int bk = bOffset + k * ldb + n;
+                        double x0 = a[ak], x1 = a[ak + 1], x2 = a[ak + 2], x3 = a[ak + 3];
+                        double y0 = b[bk], y1 = b[bk + 1], y2 = b[bk + 2], y3 = b[bk + 3];
+                        c00 += x0 * y0; c01 += x0 * y1; c02 += x0 * y2; c03 += x0 * y3;
+                        c10 += x1 * y0; c11 += x1 * y1; c12 += x1 * y2; c13 += x1 * y3;
+                        c20 += x2 * y0; c21 += x2 * y1; c22 += x2 * y2; c23 += x2 * y3;
+                        c30 += x3 * y0; c31 += x3 * y1; c32 += x3 * y2; c33 += x3 * y3;
+                    }
+                    c[r0 + n] += c00; c[r0 + n + 1] += c01; c[r0 + n + 2] += c02; c[r0 + n + 3] += c03;
+                    c[r1 + n] += c10; c[r1 + n + 1] += c11; c[r1 + n + 2] += c12; c[r1 + n + 3] += c13;
+                    c[r2 + n] += c20; c[r2 + n + 1] += c21; c[r2 + n + 2] += c22; c[r2 + n + 3] += c23;
+                    c[r3 + n] += c30; c[r3 + n + 1] += c31; c[r3 + n + 2] += c32; c[r3 + n + 3] += c33;
+                }
+            }
+            for (int m = 0; m < M; m++) {
+                int row = cOffset + m * ldc;
+                for (int n = m < mTiles ? nTiles : 0; n < N; n++) {
+                    double sum = 0;
+                    for (int k = k0; k < k1; k++) {
+                        sum += a[aOffset + k * lda + m] * b[bOffset + k * ldb + n];
+                    }
+                    c[row + n] += sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * C[m][n] += sum_k A[m][k]·B[k][n]
+     */
+    public static void gemmNN(int M, int N, int K,
+                              double[] a, int aOffset, int lda,
+                              double[] b, int bOffset, int ldb,
+                              double[] c, int cOffset, int ldc) {
+        int mTiles = M - M % TILE;
+        int nTiles = N - N % TILE;
+        for (int k0 = 0; k0 < K; k0 += DEPTH_BLOCK) {
+            int k1 = Math.min(K, k0 + DEPTH_BLOCK);
+            //Column strips of B are the outer loop, so they are reused for all the rows of A
+            for (int n = 0; n < nTiles; n += TILE) {
+                for (int m = 0; m < mTiles; m += TILE) {
+                    int a0 = aOffset + m * lda, a1 = a0 + lda, a2 = a1 + lda, a3 = a2 + lda;
+                    double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                    double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+                    double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+                    double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+                    for (int k = k0; k < k1; k++) {
+                        int bk = bOffset + k * ldb + n;
+                        double x0 = a[a0 + k], x1 = a[a1 + k], x2 = a[a2 + k], x3 = a[a3 + k];
+                        double y0 = b[bk], y1 = b[bk + 1], y2 = b[bk + 2], y3 = b[bk + 3];
+                        c00 += x0 * y0; c01 += x0 * y1; c02 += x0 * y2; c03 += x0 * y3;
+                        c10 += x1 * y0; c11 += x1 * y1; c12 += x1 * y2; c13 += x1 * y3;
+                        c20 += x2 * y0; c21 += x2 * y1; c22 += x2 * y2; c23 += x2 * y3;
+                        c30 += x3 * y0; c31 += x3 * y1; c32 += x3 * y2; c33 += x3 * y3;
+                    }
+                    int c0 = cOffset + m * ldc + n, c1 = c0 + ldc, c2 = c1 + ldc, c3 = c2 + ldc;
+                    c[c0] += c00; c[c0 + 1] += c01; c[c0 + 2] += c02; c[c0 + 3] += c03;
+                    c[c1] += c10; c[c1 + 1] += c11; c[c1 + 2] += c12; c[c1 + 3] += c13;
+                    c[c2] += c20; c[c2 + 1] += c21; c[c2 + 2] += c22; c[c2 + 3] += c23;
+                    c[c3] += c30; c[c3 + 1] += c31; c[c3 + 2] += c32; c[c3 + 3] += c33;
+                }
+            }
+            for (int m = 0; m < M; m++) {
+                int row = aOffset + m * lda;
+                for (int n = m < mTiles ? nTiles : 0; n < N; n++) {
+                    double sum = 0;
+                    for (int k = k0; k < k1; k++) {
+                        sum += a[row + k] * b[bOffset + k * ldb + n];
+                    }
+                    c[cOffset + m * ldc + n] += sum;
+                }
+            }
+        }
+    }
+}
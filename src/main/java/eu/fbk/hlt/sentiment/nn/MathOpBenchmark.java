@@ -0,0 +1,132 @@
+package eu.fbk.hlt.sentiment.nn;
+
+import eu.fbk.hlt.sentiment.nn.duyu.MathOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Compares the register-blocked MathOp kernels with the plain loops they replaced
+ * on the layer dimensions used by the models (square matrices of 50, 100, 150 and 300)
+ *
+ * Usage: MathOpBenchmark [seconds per measurement]
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class MathOpBenchmark {
+    final static Logger logger = LoggerFactory.getLogger(MathOpBenchmark.class);
+
+    public static final int[] DIMENSIONS = {50, 100, 150, 300};
+    public static final int WARMUP_ROUNDS = 3;
+
+    protected final long duration;
+    protected final Random random = new Random(42);
+    //Results are accumulated here so that the JIT can't drop the measured calls
+    protected double sink = 0.0;
+
+    public MathOpBenchmark(double seconds) {
+        this.duration = (long) (seconds * 1e9);
+    }
+
+    public void run() {
+        for (int dim : DIMENSIONS) {
+            double[] A = vector(dim * dim);
+            double[] x = vector(dim);
+            double[] b = vector(dim);
+            double[] results = new double[dim];
+            double flops = 2.0 * dim * dim;
+
+            report("Axpb", dim, flops,
+                measure(() -> naiveAxpb(A, dim, x, b, results)),
+                measure(() -> MathOp.Axpb(A, dim, x, b, results)));
+            report("xdotA", dim, flops,
+                measure(() -> naiveXdotA(x, A, dim, results)),
+                measure(() -> MathOp.xdotA(x, A, dim, results)));
+            report("A_add_xTmulty", dim, flops,
+                measure(() -> naiveAddXTmultY(x, b, A, dim)),
+                measure(() -> MathOp.A_add_xTmulty(x, b, A, dim)));
+            double[] y = vector(dim * dim);
+            report("dotProduct", dim, flops,
+                measure(() -> sink += naiveDotProduct(A, y)),
+                measure(() -> sink += MathOp.dotProduct(A, y)));
+            sink += results[0] + A[0];
+        }
+        logger.debug("Checksum: "+sink);
+    }
+
+    /**
+     * @return nanoseconds per call
+     */
+    private double measure(Runnable kernel) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 100; i++) {
+                    kernel.run();
+                }
+                calls += 100;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < duration);
+            best = Math.min(best, (double) elapsed / calls);
+        }
+        return best;
+    }
+
+    private void report(String kernel, int dim, double flops, double naive, double blocked) {
+        logger.info(String.format("%-14s dim %3d: plain %8.1fns (%5.2f GFLOP/s), blocked %8.1fns (%5.2f GFLOP/s), speedup %.2fx",
+            kernel, dim, naive, flops / naive, blocked, flops / blocked, naive / blocked));
+    }
+
+    private double[] vector(int size) {
+        double[] vector = new double[size];
+        for (int i = 0; i < size; i++) {
+            vector[i] = random.nextDouble() * 0.02 - 0.01;
+        }
+        return vector;
+    }
+
+    private static void naiveAxpb(double[] A, int cols, double[] x, double[] b, double[] results) {
+        System.arraycopy(b, 0, results, 0, results.length);
+        for (int i = 0; i < results.length; i++) {
+            for (int j = 0; j < x.length; j++) {
+                results[i] += A[i * cols + j] * x[j];
+            }
+        }
+    }
+
+    private static void naiveXdotA(double[] x, double[] A, int cols, double[] results) {
+        for (int j = 0; j < results.length; j++) {
+            results[j] = 0;
+        }
+        for (int i = 0; i < x.length; i++) {
+            for (int j = 0; j < results.length; j++) {
+                results[j] += x[i] * A[i * cols + j];
+            }
+        }
+    }
+
+    private static void naiveAddXTmultY(double[] x, double[] y, double[] A, int cols) {
+        for (int i = 0; i < x.length; i++) {
+            for (int j = 0; j < y.length; j++) {
+                A[i * cols + j] += x[i] * y[j];
+            }
+        }
+    }
+
+    private static double naiveDotProduct(double[] x, double[] y) {
+        double dotP = 0;
+        for (int i = 0; i < x.length; i++) {
+            dotP += x[i] * y[i];
+        }
+        return dotP;
+    }
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 0.5;
+        new MathOpBenchmark(seconds).run();
+    }
+}
@@ -130,6 +130,13 @@ public class Pipeline {
         return aggregator;
     }
 
+    /**
+     * Sort the layers reachable from this pipeline once, so that the passes don't walk the structure every time
+     */
+    public ExecutionPlan compile() {
+        return ExecutionPlan.compile(this);
+    }
+
     public NNInterface getInputLayer() {
         return layer;
     }
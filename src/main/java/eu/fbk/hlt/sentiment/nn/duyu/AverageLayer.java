@@ -14,6 +14,9 @@ public class AverageLayer implements NNInterface {
     public double[] outputG;
 
     public int linkId;
+    
+    // examples processed at once, the buffers hold one row per example
+    public int batchSize = 1;
 	
     public AverageLayer() {}
 
@@ -23,14 +26,20 @@ public class AverageLayer implements NNInterface {
     }
     
     public AverageLayer(int xInputLength, int xOutputLength, int xLinkId)
+    {
+    	this(xInputLength, xOutputLength, xLinkId, 1);
+    }
+    
+    public AverageLayer(int xInputLength, int xOutputLength, int xLinkId, int xBatchSize)
     {
     	inputLength = xInputLength;
     	outputLength = xOutputLength;
 		linkId = xLinkId;
-		input = new double[inputLength];
-		inputG = new double[inputLength];
-		output = new double[outputLength];
-		outputG = new double[outputLength];
+		batchSize = xBatchSize;
+		input = new double[inputLength * batchSize];
+		inputG = new double[inputLength * batchSize];
+		output = new double[outputLength * batchSize];
+		outputG = new double[outputLength * batchSize];
     }
     
 	@Override
@@ -39,21 +48,26 @@ public class AverageLayer implements NNInterface {
 
 	@Override
 	public void forward() {
-		for(int i = 0; i < outputLength; i++)
+		for(int i = 0; i < output.length; i++)
 		{
 			output[i] = 0;
 		}
 		
 		int K = inputLength / outputLength;
-		for(int j = 0; j < K; j++)
+		for (int k = 0; k < batchSize; k++)
 		{
-			for(int i = 0; i < outputLength; i++)
+			int inputOffset = k * inputLength;
+			int outputOffset = k * outputLength;
+			for(int j = 0; j < K; j++)
 			{
-				output[i] += input[j * outputLength + i];
+				for(int i = 0; i < outputLength; i++)
+				{
+					output[outputOffset + i] += input[inputOffset + j * outputLength + i];
+				}
 			}
 		}
 		
-		for(int i = 0; i < outputLength; i++)
+		for(int i = 0; i < output.length; i++)
 		{
 			output[i] = output[i] / K;
 		}
@@ -62,11 +76,16 @@ public class AverageLayer implements NNInterface {
 	@Override
 	public void backward() {
 		int K = inputLength / outputLength;
-		for(int j = 0; j < K; j++)
+		for (int k = 0; k < batchSize; k++)
 		{
-			for(int i = 0; i < outputLength; i++)
+			int inputOffset = k * inputLength;
+			int outputOffset = k * outputLength;
+			for(int j = 0; j < K; j++)
 			{
-				inputG[i + j * outputLength] = outputG[i] / K;
+				for(int i = 0; i < outputLength; i++)
+				{
+					inputG[inputOffset + i + j * outputLength] = outputG[outputOffset + i] / K;
+				}
 			}
 		}
 	}
@@ -136,7 +155,7 @@ public class AverageLayer implements NNInterface {
 
 	@Override
 	public Object cloneWithTiedParams() {
-		return new AverageLayer(inputLength, outputLength, linkId);
+		return new AverageLayer(inputLength, outputLength, linkId, batchSize);
 	}
 
 }
@@ -1,13 +1,17 @@
 package eu.fbk.hlt.sentiment.nn.duyu;
 
+import eu.fbk.hlt.sentiment.nn.Gemm;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
 public class LinearLayer implements NNInterface {
 
-	public double[][] W;
+	// row-major outputLength x inputLength
+	public double[] W;
 	public double[] b;
 	
 	public int inputLength;
@@ -19,14 +23,18 @@ public class LinearLayer implements NNInterface {
 	public double[] inputG;
 	public double[] outputG;
 	
-	public double[][] WG;
+	public double[] WG;
     public double[] bG;
 
-    public double[][] WAdaLR;
+    public double[] WAdaLR;
     public double[] bAdaLR;
     
     public int linkId;
     
+    // examples processed at once, the buffers hold one row per example
+    // and the weights are multiplied by the whole batch at once
+    public int batchSize = 1;
+    
     private LinearLayer() {}
 
     public LinearLayer(int xInputLength,
@@ -38,40 +46,39 @@ public class LinearLayer implements NNInterface {
     public LinearLayer(int xInputLength,
     		int xOutputLength,
     		int xLinkId)
+    {
+    	this(xInputLength, xOutputLength, xLinkId, 1);
+    }
+    
+    public LinearLayer(int xInputLength,
+    		int xOutputLength,
+    		int xLinkId,
+    		int xBatchSize)
     {
     	inputLength = xInputLength;
     	outputLength = xOutputLength;
     	linkId = xLinkId;
+    	batchSize = xBatchSize;
     	
-    	W = new double[outputLength][];
-    	WG = new double[outputLength][];
-    	WAdaLR = new double[outputLength][];
-    	
-    	for(int i = 0; i < W.length; i++)
-    	{
-    		W[i] = new double[inputLength];
-    		WG[i] = new double[inputLength];
-    		WAdaLR[i] = new double[inputLength];
-    	}
+    	W = new double[outputLength * inputLength];
+    	WG = new double[outputLength * inputLength];
+    	WAdaLR = new double[outputLength * inputLength];
     	
     	b = new double[outputLength];
     	bG = new double[outputLength];
     	bAdaLR = new double[outputLength];
     	
-    	input = new double[inputLength];
-    	inputG = new double[inputLength];
-    	output = new double[outputLength];
-    	outputG = new double[outputLength];
+    	input = new double[inputLength * batchSize];
+    	inputG = new double[inputLength * batchSize];
+    	output = new double[outputLength * batchSize];
+    	outputG = new double[outputLength * batchSize];
     }
     
 	@Override
 	public void randomize(Random r, double min, double max) {
 		for(int i = 0; i < W.length; i++)
 		{
-			for(int j = 0; j < W[i].length; j++)
-			{
-				W[i][j] = r.nextFloat() * (max - min) + min;
-			}
+			W[i] = r.nextFloat() * (max - min) + min;
 		}
 		for(int i = 0; i < b.length; i++)
 		{
@@ -81,7 +88,21 @@ public class LinearLayer implements NNInterface {
 
 	@Override
 	public void forward() {
-		MathOp.Axpb(W, input, b, output);
+		if(batchSize == 1)
+		{
+			MathOp.Axpb(W, inputLength, input, b, output);
+			return;
+		}
+		
+		// output = input * W^T + b for all the examples at once
+		for(int k = 0; k < batchSize; k++)
+		{
+			System.arraycopy(b, 0, output, k * outputLength, outputLength);
+		}
+		Gemm.gemmNT(batchSize, outputLength, inputLength,
+				input, 0, inputLength,
+				W, 0, inputLength,
+				output, 0, outputLength);
 	}
 
 	List<Integer> dropedInputIdxes;
@@ -121,50 +142,80 @@ public class LinearLayer implements NNInterface {
 		}
 		
 		// set zero to input
-		for(int idx: dropedInputIdxes)
+		for(int k = 0; k < batchSize; k++)
 		{
-			input[idx] = 0;
+			for(int idx: dropedInputIdxes)
+			{
+				input[k * inputLength + idx] = 0;
+			}
 		}
 		
-		MathOp.Axpb(W, input, b, output);
+		forward();
 		
 		// set zero to output
-		for(int idx: dropedOutputIdxes)
+		for(int k = 0; k < batchSize; k++)
 		{
-			output[idx] = 0;
+			for(int idx: dropedOutputIdxes)
+			{
+				output[k * outputLength + idx] = 0;
+			}
 		}
 	}
 	
 	public void backwardWithDropout()
 	{
-		for(int idx: dropedOutputIdxes)
+		for(int k = 0; k < batchSize; k++)
 		{
-			outputG[idx] = 0;
+			for(int idx: dropedOutputIdxes)
+			{
+				outputG[k * outputLength + idx] = 0;
+			}
 		}
 		
-		MathOp.xdotA(outputG, W, inputG);
-		MathOp.A_add_xTmulty(outputG, input, WG);
+		backward();
 		
-		for (int i = 0; i < bG.length; ++i)
-        {
-            bG[i] += outputG[i];
-        }
-		
-		for(int idx: dropedInputIdxes)
+		for(int k = 0; k < batchSize; k++)
 		{
-			inputG[idx] = 0;
+			for(int idx: dropedInputIdxes)
+			{
+				inputG[k * inputLength + idx] = 0;
+			}
 		}
 	}
 	
 	@Override
 	public void backward() {
-		MathOp.xdotA(outputG, W, inputG);
-		MathOp.A_add_xTmulty(outputG, input, WG);
+		if(batchSize == 1)
+		{
+			MathOp.xdotA(outputG, W, inputLength, inputG);
+			MathOp.A_add_xTmulty(outputG, input, WG, inputLength);
+			
+			for (int i = 0; i < bG.length; ++i)
+	        {
+	            bG[i] += outputG[i];
+	        }
+			return;
+		}
+		
+		// inputG = outputG * W, WG += outputG^T * input, the gradients are summed over the batch
+		Arrays.fill(inputG, 0);
+		Gemm.gemmNN(batchSize, inputLength, outputLength,
+				outputG, 0, outputLength,
+				W, 0, inputLength,
+				inputG, 0, inputLength);
+		Gemm.gemmTN(outputLength, inputLength, batchSize,
+				outputG, 0, outputLength,
+				input, 0, inputLength,
+				WG, 0, inputLength);
 		
-		for (int i = 0; i < bG.length; ++i)
-        {
-            bG[i] += outputG[i];
-        }
+		for(int k = 0; k < batchSize; k++)
+		{
+			int offset = k * outputLength;
+			for (int i = 0; i < bG.length; ++i)
+	        {
+	            bG[i] += outputG[offset + i];
+	        }
+		}
 	}
 
 	@Override
@@ -176,10 +227,7 @@ public class LinearLayer implements NNInterface {
 		
 		for(int i = 0; i < W.length; i++)
 		{
-			for(int j = 0; j < W[i].length; j++)
-			{
-				W[i][j] += learningRate * WG[i][j];
-			}
+			W[i] += learningRate * WG[i];
 		}
 	}
 
@@ -193,22 +241,16 @@ public class LinearLayer implements NNInterface {
 		
 		for(int i = 0; i < W.length; i++)
 		{
-			for(int j = 0; j < W[i].length; j++)
-			{
-				WAdaLR[i][j] += (WG[i][j] / batchsize) * (WG[i][j] / batchsize);
-				W[i][j] += (learningRate / batchsize) * WG[i][j] / Math.sqrt(WAdaLR[i][j]);
-			}
+			WAdaLR[i] += (WG[i] / batchsize) * (WG[i] / batchsize);
+			W[i] += (learningRate / batchsize) * WG[i] / Math.sqrt(WAdaLR[i]);
 		}
 	}
 	
 	@Override
 	public void clearGrad() {
-		for(int i = 0; i < W.length; i++)
+		for(int i = 0; i < WG.length; i++)
 		{
-			for(int j = 0; j < W[i].length; j++)
-			{
-				WG[i][j] = 0;
-			}
+			WG[i] = 0;
 		}
 		
 		for(int i = 0; i < b.length; i++)
@@ -278,16 +320,13 @@ public class LinearLayer implements NNInterface {
 	public Object cloneWithTiedParams() {
 		LinearLayer clone = new LinearLayer();
 		clone.linkId = linkId;
+		clone.batchSize = batchSize;
         clone.inputLength = inputLength;
         clone.outputLength = outputLength;
         
 		clone.W = W;
         clone.b = b;
-        clone.WG = new double[WG.length][];
-        for(int i = 0; i < WG.length; i++)
-        {
-        	clone.WG[i] = new double[inputLength];
-        }
+        clone.WG = new double[WG.length];
         clone.bG = new double[bG.length];
         clone.bAdaLR = bAdaLR;
         clone.WAdaLR = WAdaLR;
@@ -308,10 +347,44 @@ public class LinearLayer implements NNInterface {
 		
 		for(int i = 0; i < W.length; i++)
 		{
-			for(int j = 0; j < W[i].length; j++)
+			W[i] -= lambda * W[i];
+		}
+	}
+
+	// compatibility accessors for the callers that expect a matrix of rows
+	public double getW(int row, int col)
+	{
+		return W[row * inputLength + col];
+	}
+
+	public void setW(int row, int col, double value)
+	{
+		W[row * inputLength + col] = value;
+	}
+
+	public double[][] getWeights()
+	{
+		double[][] weights = new double[outputLength][inputLength];
+		for(int i = 0; i < outputLength; i++)
+		{
+			System.arraycopy(W, i * inputLength, weights[i], 0, inputLength);
+		}
+		return weights;
+	}
+
+	public void setWeights(double[][] weights) throws Exception
+	{
+		if(weights.length != outputLength)
+		{
+			throw new Exception("The weights do not match.");
+		}
+		for(int i = 0; i < outputLength; i++)
+		{
+			if(weights[i].length != inputLength)
 			{
-				W[i][j] -= lambda * W[i][j];
+				throw new Exception("The weights do not match.");
 			}
+			System.arraycopy(weights[i], 0, W, i * inputLength, inputLength);
 		}
 	}
 }
@@ -1,11 +1,12 @@
 package eu.fbk.hlt.sentiment.nn.duyu;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Random;
 
 public class LookupLayer implements NNInterface {
 	// y = Wx + b
-	public double[][] table;
+	// row-major vocabSize x embeddingLength
+	public double[] table;
 	
 	public int embeddingLength;
 	
@@ -19,11 +20,19 @@ public class LookupLayer implements NNInterface {
 	
 	public double[] outputG;
 	
-	public double[][] adaLR;
+	public double[] adaLR;
 	
 	public int linkId;
 	
-	HashMap<Integer, double[]> changeMap; 
+	// examples processed at once, the input holds inputLength word ids per example
+	public int batchSize = 1;
+	
+	// sparse embedding gradients: open-addressing map from the word id to a row of the gradient arena,
+	// the rows are allocated in the order the words are touched and reused after clearGrad
+	int[] gradSlots;
+	int[] touchedIds;
+	double[] gradArena;
+	int touchedCount;
 	
 	public LookupLayer() {}
 
@@ -38,38 +47,37 @@ public class LookupLayer implements NNInterface {
 			int xVocabSize,
 			int xInputLength,
 			int xLinkId)
+	{
+		this(xEmbeddingLength, xVocabSize, xInputLength, xLinkId, 1);
+	}
+	
+	public LookupLayer(int xEmbeddingLength,
+			int xVocabSize,
+			int xInputLength,
+			int xLinkId,
+			int xBatchSize)
 	{
 		embeddingLength = xEmbeddingLength;
 		vocabSize = xVocabSize;
 		inputLength = xInputLength;
+		batchSize = xBatchSize;
 		
-		table = new double[vocabSize][];
-		for (int i = 0; i < table.length; ++i)
-        {
-            table[i] = new double[embeddingLength];
-        }
+		table = new double[vocabSize * embeddingLength];
 		
-		input   = new int[inputLength];
-		output  = new double[embeddingLength * inputLength];
-		outputG = new double[embeddingLength * inputLength];
+		input   = new int[inputLength * batchSize];
+		output  = new double[embeddingLength * inputLength * batchSize];
+		outputG = new double[embeddingLength * inputLength * batchSize];
 		
-		adaLR = new double[vocabSize][];
-        for (int i = 0; i < adaLR.length; ++i)
-        {
-            adaLR[i] = new double[embeddingLength];
-        }
+		adaLR = new double[vocabSize * embeddingLength];
         
         linkId = xLinkId;
 	}
 	
 	@Override
 	public void randomize(Random r, double min, double max) {
-		for(int i = 0; i < vocabSize; i++)
+		for(int i = 0; i < table.length; i++)
 		{
-			for(int j = 0; j < embeddingLength; j++)
-			{
-				table[i][j] = r.nextFloat() * (max - min) + min;
-			}
+			table[i] = r.nextFloat() * (max - min) + min;
 		}
 	}
 
@@ -84,7 +92,7 @@ public class LookupLayer implements NNInterface {
 
             if (inputId >= 0)
             {
-				System.arraycopy(table[inputId], 0, output, offset, embeddingLength);
+				System.arraycopy(table, inputId * embeddingLength, output, offset, embeddingLength);
             }
             else
             {
@@ -98,46 +106,92 @@ public class LookupLayer implements NNInterface {
 
 	@Override
 	public void backward() {
-		if(null == changeMap)
-		{
-			changeMap = new HashMap<>();
-		}
-		
 		for (int i = 0; i < input.length; ++i)
         {
 			int wordId = input[i];
-			int offset = i * embeddingLength;
+			// unknown words are looked up as zeros and have no row to update
+			if (wordId < 0)
+			{
+				continue;
+			}
 			
-			if(changeMap.containsKey(wordId))
+			int offset = i * embeddingLength;
+			int gOffset = gradRow(wordId) * embeddingLength;
+			for (int j = 0; j < embeddingLength; ++j)
+            {
+				gradArena[gOffset + j] += outputG[offset + j];
+            }
+        }
+	}
+
+	int gradRow(int wordId) {
+		if(null == gradSlots)
+		{
+			gradSlots = new int[16];
+			Arrays.fill(gradSlots, -1);
+			touchedIds = new int[8];
+			gradArena = new double[8 * embeddingLength];
+		}
+		
+		int mask = gradSlots.length - 1;
+		int slot = hash(wordId) & mask;
+		while (gradSlots[slot] >= 0)
+		{
+			if (touchedIds[gradSlots[slot]] == wordId)
 			{
-				double[] embedG = changeMap.get(wordId);
-				for (int j = 0; j < embeddingLength; ++j)
-                {
-                    embedG[j] += outputG[j + offset];
-                }
+				return gradSlots[slot];
 			}
-			else
+			slot = (slot + 1) & mask;
+		}
+		
+		if (touchedCount == touchedIds.length)
+		{
+			touchedIds = Arrays.copyOf(touchedIds, 2 * touchedCount);
+			gradArena = Arrays.copyOf(gradArena, 2 * touchedCount * embeddingLength);
+		}
+		int row = touchedCount++;
+		touchedIds[row] = wordId;
+		gradSlots[slot] = row;
+		Arrays.fill(gradArena, row * embeddingLength, (row + 1) * embeddingLength, 0);
+		
+		// keep the load factor under 1/2
+		if (2 * touchedCount > gradSlots.length)
+		{
+			gradSlots = new int[2 * gradSlots.length];
+			Arrays.fill(gradSlots, -1);
+			mask = gradSlots.length - 1;
+			for (int i = 0; i < touchedCount; i++)
 			{
-				double[] embedG = new double[embeddingLength];
-				System.arraycopy(outputG, offset, embedG, 0, embeddingLength);
-				changeMap.put(wordId, embedG);
+				slot = hash(touchedIds[i]) & mask;
+				while (gradSlots[slot] >= 0)
+				{
+					slot = (slot + 1) & mask;
+				}
+				gradSlots[slot] = i;
 			}
-        }
+		}
+		return row;
+	}
+	
+	static int hash(int wordId) {
+		int h = wordId * 0x9E3779B9;
+		return h ^ (h >>> 16);
 	}
 
 	public void update(double learningRate, boolean isNorm) {
-		for(int wordId : changeMap.keySet())
+		for(int row = 0; row < touchedCount; row++)
 		{
-			double[] embedG = changeMap.get(wordId);
+			int gOffset = row * embeddingLength;
 			double tmpL2Norm = 0.0;
+			int offset = touchedIds[row] * embeddingLength;
 			
 			for(int j = 0; j < embeddingLength; j++)
 			{
-				table[wordId][j] += learningRate * embedG[j];
+				table[offset + j] += learningRate * gradArena[gOffset + j];
 				
 				if(isNorm)
 				{
-					tmpL2Norm = table[wordId][j] * table[wordId][j];
+					tmpL2Norm = table[offset + j] * table[offset + j];
 				}
 			}
 			
@@ -145,7 +199,7 @@ public class LookupLayer implements NNInterface {
 			{
 				for(int j = 0; j < embeddingLength; j++)
 				{
-					table[wordId][j] = table[wordId][j] / tmpL2Norm;
+					table[offset + j] = table[offset + j] / tmpL2Norm;
 				}
 			}
 		}
@@ -159,25 +213,26 @@ public class LookupLayer implements NNInterface {
 	public void updateAdaGrad(double learningRate, 
 			int batchsize, 
 			boolean isNorm) {
-		for(int wordId : changeMap.keySet())
+		for(int row = 0; row < touchedCount; row++)
 		{
-			double[] embedG = changeMap.get(wordId);
+			int gOffset = row * embeddingLength;
 			double tmpL2Norm = 0.0;
+			int offset = touchedIds[row] * embeddingLength;
 			
 			for (int j = 0; j < embeddingLength; ++j)
             {
-                adaLR[wordId][j] += 
-                	(embedG[j] / batchsize) * (embedG[j] / batchsize);
+				double embedG = gradArena[gOffset + j] / batchsize;
+                adaLR[offset + j] += embedG * embedG;
             }
 			
 			for(int j = 0; j < embeddingLength; j++)
 			{
-				table[wordId][j] += learningRate * embedG[j] 
-						/ (batchsize * Math.sqrt(adaLR[wordId][j]));
+				table[offset + j] += learningRate * gradArena[gOffset + j] 
+						/ (batchsize * Math.sqrt(adaLR[offset + j]));
 				
 				if(isNorm)
 				{
-					tmpL2Norm = table[wordId][j] * table[wordId][j];
+					tmpL2Norm = table[offset + j] * table[offset + j];
 				}
 			}
 			
@@ -185,7 +240,7 @@ public class LookupLayer implements NNInterface {
 			{
 				for(int j = 0; j < embeddingLength; j++)
 				{
-					table[wordId][j] = table[wordId][j] / tmpL2Norm;
+					table[offset + j] = table[offset + j] / tmpL2Norm;
 				}
 			}
 		}
@@ -198,11 +253,18 @@ public class LookupLayer implements NNInterface {
 
 	@Override
 	public void clearGrad() {
-		if (changeMap == null)
-        {
-            return;
-        }
-        changeMap.clear();
+		// only the slots of the touched words are freed, the arena rows are zeroed when they are reused
+		for (int row = 0; row < touchedCount; row++)
+		{
+			int mask = gradSlots.length - 1;
+			int slot = hash(touchedIds[row]) & mask;
+			while (gradSlots[slot] != row)
+			{
+				slot = (slot + 1) & mask;
+			}
+			gradSlots[slot] = -1;
+		}
+		touchedCount = 0;
         
         for(int i = 0; i < outputG.length; i++)
         {
@@ -260,9 +322,9 @@ public class LookupLayer implements NNInterface {
 		lookup.vocabSize = vocabSize;
 		lookup.table = table;
 		lookup.inputLength = inputLength;
-		lookup.changeMap = new HashMap<>();
 		lookup.linkId = linkId;
-		lookup.input = new int[inputLength];
+		lookup.batchSize = batchSize;
+		lookup.input = new int[input.length];
 		lookup.output = new double[output.length];
 		lookup.outputG = new double[outputG.length];
 		
@@ -271,25 +333,30 @@ public class LookupLayer implements NNInterface {
 	
 	public void setEmbeddings(double[][] embed) throws Exception
     {
-        if (embed == null || embed.length != table.length
+        if (embed == null || embed.length != vocabSize
             || embed.length == 0)
         {
             throw new Exception("embedding does not match!");
         }
 
-        for (int i = 0; i < table.length; ++i)
+        for (int i = 0; i < vocabSize; ++i)
         {
-			System.arraycopy(embed[i], 0, table[i], 0, embeddingLength);
+			System.arraycopy(embed[i], 0, table, i * embeddingLength, embeddingLength);
         }
     }
 
+	// compatibility accessor for the callers that expect a matrix of rows
+	public double[] getEmbedding(int wordId)
+	{
+		double[] embedding = new double[embeddingLength];
+		System.arraycopy(table, wordId * embeddingLength, embedding, 0, embeddingLength);
+		return embedding;
+	}
+
 	public void regularizationLookup(double lambda) {
 		for (int i = 0; i < table.length; ++i)
         {
-        	for(int j = 0; j < embeddingLength; j++)
-        	{
-        		table[i][j] -= lambda * table[i][j];
-        	}
+        	table[i] -= lambda * table[i];
         }
 	}
 }
@@ -2,101 +2,158 @@ package eu.fbk.hlt.sentiment.nn.duyu;
 
 public class MathOp {
 
+	// the matrices are row-major with the row stride "cols"
+	// the matrix-vector products are register-blocked by four rows:
+	// every element of the vector is loaded once for four rows of the matrix
+
+	public static final int BLOCK = 4;
+
 	public static void xDotApb(double[] x,
-			double[][] A,
+			double[] A,
+			int cols,
 			double[] b,
 			double[] results)
 	{
-		int row = x.length;
-		int col = results.length;
-
-		System.arraycopy(b, 0, results, 0, col);
-		
-		for(int i = 0; i < row; i++)
-		{
-			for(int j = 0; j < col; j++)
-			{
-				results[j] += A[i][j] * x[i];
-			}
-		}
+		System.arraycopy(b, 0, results, 0, results.length);
+		xdotAadd(x, A, cols, results);
 	}
 	
-	public static void Axpy(double[][] A, 
+	public static void Axpy(double[] A, 
+			int cols,
 			double[] x,
 			double[] results)
 	{
-		int row = results.length;
-		int col = x.length;
-		
-		for(int i = 0; i < row; i++)
-		{
-			for(int j = 0; j < col; j++)
-			{
-				results[i] += A[i][j] * x[j];
-			}
-		}
+		AxAdd(A, cols, x, results);
 	}
 	
-	
-	public static void Axpb(double[][] A, 
+	public static void Axpb(double[] A, 
+			int cols,
 			double[] x,
 			double[] b,
 			double[] results)
 	{
-		int row = results.length;
-		int col = x.length;
-
-		System.arraycopy(b, 0, results, 0, row);
-		
-		for(int i = 0; i < row; i++)
-		{
-			for(int j = 0; j < col; j++)
-			{
-				results[i] += A[i][j] * x[j];
-			}
-		}
+		System.arraycopy(b, 0, results, 0, results.length);
+		AxAdd(A, cols, x, results);
 	}
 	
-	public static void xdotA(double[] x, double[][] A, double[] results)
+	public static void xdotA(double[] x, double[] A, int cols, double[] results)
     {
-		int row = x.length;
-		int col = results.length;
-		
-        for (int j = 0; j < col; ++j)
+		for (int j = 0; j < results.length; ++j)
         {
             results[j] = 0;
         }
-
-        for (int i = 0; i < row; ++i)
-        {
-            for (int j = 0; j < col; ++j)
-            {
-            	results[j] += x[i] * A[i][j];
-            }
-        }
+		xdotAadd(x, A, cols, results);
     }
 	
-	public static void A_add_xTmulty(double[] x, double[] y, double[][] A)
+	public static void A_add_xTmulty(double[] x, double[] y, double[] A, int cols)
     {
         int row = x.length;
         int col = y.length;
+        int blocked = row - row % BLOCK;
 
-        for (int i = 0; i < row; ++i)
+        for (int i = 0; i < blocked; i += BLOCK)
         {
+        	int o0 = i * cols, o1 = o0 + cols, o2 = o1 + cols, o3 = o2 + cols;
+        	double x0 = x[i], x1 = x[i + 1], x2 = x[i + 2], x3 = x[i + 3];
             for (int j = 0; j < col; ++j)
             {
-                A[i][j] += x[i] * y[j];
+            	double yj = y[j];
+                A[o0 + j] += x0 * yj;
+                A[o1 + j] += x1 * yj;
+                A[o2 + j] += x2 * yj;
+                A[o3 + j] += x3 * yj;
+            }
+        }
+        for (int i = blocked; i < row; ++i)
+        {
+        	int offset = i * cols;
+        	double xi = x[i];
+            for (int j = 0; j < col; ++j)
+            {
+                A[offset + j] += xi * y[j];
             }
         }
     }
 	
 	public static double dotProduct(double[] x, double[] y)
 	{
-		double dotP = 0;
-		for(int i = 0; i < x.length; i++)
+		// independent accumulators so that the additions don't wait for each other
+		int blocked = x.length - x.length % BLOCK;
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		for(int i = 0; i < blocked; i += BLOCK)
+		{
+			s0 += x[i] * y[i];
+			s1 += x[i + 1] * y[i + 1];
+			s2 += x[i + 2] * y[i + 2];
+			s3 += x[i + 3] * y[i + 3];
+		}
+		for(int i = blocked; i < x.length; i++)
+		{
+			s0 += x[i] * y[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	// results += A x
+	private static void AxAdd(double[] A, int cols, double[] x, double[] results)
+	{
+		int row = results.length;
+		int col = x.length;
+		int blocked = row - row % BLOCK;
+
+		for(int i = 0; i < blocked; i += BLOCK)
+		{
+			int o0 = i * cols, o1 = o0 + cols, o2 = o1 + cols, o3 = o2 + cols;
+			double s0 = results[i], s1 = results[i + 1], s2 = results[i + 2], s3 = results[i + 3];
+			for(int j = 0; j < col; j++)
+			{
+				double xj = x[j];
+				s0 += A[o0 + j] * xj;
+				s1 += A[o1 + j] * xj;
+				s2 += A[o2 + j] * xj;
+				s3 += A[o3 + j] * xj;
+			}
+			results[i] = s0;
+			results[i + 1] = s1;
+			results[i + 2] = s2;
+			results[i + 3] = s3;
+		}
+		for(int i = blocked; i < row; i++)
 		{
-			dotP += x[i] * y[i];
+			int offset = i * cols;
+			double sum = results[i];
+			for(int j = 0; j < col; j++)
+			{
+				sum += A[offset + j] * x[j];
+			}
+			results[i] = sum;
+		}
+	}
+
+	// results += x A
+	private static void xdotAadd(double[] x, double[] A, int cols, double[] results)
+	{
+		int row = x.length;
+		int col = results.length;
+		int blocked = row - row % BLOCK;
+
+		for (int i = 0; i < blocked; i += BLOCK)
+		{
+			int o0 = i * cols, o1 = o0 + cols, o2 = o1 + cols, o3 = o2 + cols;
+			double x0 = x[i], x1 = x[i + 1], x2 = x[i + 2], x3 = x[i + 3];
+			for (int j = 0; j < col; ++j)
+			{
+				results[j] += x0 * A[o0 + j] + x1 * A[o1 + j] + x2 * A[o2 + j] + x3 * A[o3 + j];
+			}
+		}
+		for (int i = blocked; i < row; ++i)
+		{
+			int offset = i * cols;
+			double xi = x[i];
+			for (int j = 0; j < col; ++j)
+			{
+				results[j] += xi * A[offset + j];
+			}
 		}
-		return dotP;
 	}
 }
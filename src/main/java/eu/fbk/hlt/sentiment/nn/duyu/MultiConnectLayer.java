@@ -17,6 +17,9 @@ public class MultiConnectLayer implements NNInterface{
     public double[] outputG;
 
     public int linkId;
+    
+    // examples processed at once, the buffers hold one row per example
+    public int batchSize = 1;
 	
     public MultiConnectLayer() {}
     
@@ -26,9 +29,15 @@ public class MultiConnectLayer implements NNInterface{
     }
     
     public MultiConnectLayer(int xLinkId, int[] xInputLengths)
+    {
+    	this(xLinkId, xInputLengths, 1);
+    }
+    
+    public MultiConnectLayer(int xLinkId, int[] xInputLengths, int xBatchSize)
     {
     	inputLengths = xInputLengths;
     	linkId = xLinkId;
+    	batchSize = xBatchSize;
     	
     	outputLength = 0;
 		for (int inputLength : inputLengths) {
@@ -40,12 +49,12 @@ public class MultiConnectLayer implements NNInterface{
     	
     	for(int i = 0; i < inputLengths.length; i++)
     	{
-    		input[i] = new double[inputLengths[i]];
-    		inputG[i] = new double[inputLengths[i]];
+    		input[i] = new double[inputLengths[i] * batchSize];
+    		inputG[i] = new double[inputLengths[i] * batchSize];
     	}
     	
-    	output = new double[outputLength];
-    	outputG = new double[outputLength];
+    	output = new double[outputLength * batchSize];
+    	outputG = new double[outputLength * batchSize];
     }
     
 	@Override
@@ -55,12 +64,12 @@ public class MultiConnectLayer implements NNInterface{
 	@Override
 	public void forward() {
 		int k = 0;
-		for(int i = 0; i < input.length; i++)
+		for(int b = 0; b < batchSize; b++)
 		{
-			for(int j = 0; j < input[i].length; j++)
+			for(int i = 0; i < input.length; i++)
 			{
-				output[k] = input[i][j];
-				k++;
+				System.arraycopy(input[i], b * inputLengths[i], output, k, inputLengths[i]);
+				k += inputLengths[i];
 			}
 		}
 	}
@@ -68,12 +77,12 @@ public class MultiConnectLayer implements NNInterface{
 	@Override
 	public void backward() {
 		int k = 0;
-		for(int i = 0; i < input.length; i++)
+		for(int b = 0; b < batchSize; b++)
 		{
-			for(int j = 0; j < input[i].length; j++)
+			for(int i = 0; i < input.length; i++)
 			{
-				inputG[i][j] = outputG[k];
-				k++;
+				System.arraycopy(outputG, k, inputG[i], b * inputLengths[i], inputLengths[i]);
+				k += inputLengths[i];
 			}
 		}
 	}
@@ -146,6 +155,6 @@ public class MultiConnectLayer implements NNInterface{
 
 	@Override
 	public Object cloneWithTiedParams() {
-		return new MultiConnectLayer(linkId, inputLengths);
+		return new MultiConnectLayer(linkId, inputLengths, batchSize);
 	}
 }
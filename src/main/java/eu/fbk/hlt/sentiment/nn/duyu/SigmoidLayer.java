@@ -6,6 +6,8 @@ public class SigmoidLayer implements NNInterface{
 
 	public int length;
 	public int linkId;
+	// examples processed at once, the buffers hold one row of length per example
+	public int batchSize = 1;
 	public double[] input;
 	public double[] inputG;
 	public double[] output;
@@ -19,13 +21,19 @@ public class SigmoidLayer implements NNInterface{
 	}
 	
 	public SigmoidLayer(int xLength, int xLinkId)
+	{
+		this(xLength, xLinkId, 1);
+	}
+	
+	public SigmoidLayer(int xLength, int xLinkId, int xBatchSize)
 	{
 		length = xLength;
 		linkId = xLinkId;
-		input = new double[length];
-		inputG = new double[length];
-		output = new double[length];
-		outputG = new double[length];
+		batchSize = xBatchSize;
+		input = new double[length * batchSize];
+		inputG = new double[length * batchSize];
+		output = new double[length * batchSize];
+		outputG = new double[length * batchSize];
 	}
 	
 	@Override
@@ -35,7 +43,7 @@ public class SigmoidLayer implements NNInterface{
 	@Override
 	public void forward() {
 		//output[i] = 1 / (1 + Math.exp(-input[i]) );
-		for (int i = 0; i < length; i++)
+		for (int i = 0; i < input.length; i++)
 		{
 	        if (input[i] > 0)
 	        {
@@ -126,7 +134,7 @@ public class SigmoidLayer implements NNInterface{
 
 	@Override
 	public Object cloneWithTiedParams() {
-		return new SigmoidLayer(length, linkId);
+		return new SigmoidLayer(length, linkId, batchSize);
 	}
 
 }
@@ -6,6 +6,8 @@ public class SoftmaxLayer implements NNInterface{
 
 	public int length;
 	public int linkId;
+	// examples processed at once, the buffers hold one row of length per example
+	public int batchSize = 1;
 	public double[] input;
 	public double[] inputG;
 	public double[] output;
@@ -19,13 +21,19 @@ public class SoftmaxLayer implements NNInterface{
 	}
 	
 	public SoftmaxLayer(int xLength, int xLinkId)
+	{
+		this(xLength, xLinkId, 1);
+	}
+	
+	public SoftmaxLayer(int xLength, int xLinkId, int xBatchSize)
 	{
 		length = xLength;
 		linkId = xLinkId;
-		input = new double[length];
-		inputG = new double[length];
-		output = new double[length];
-		outputG = new double[length];
+		batchSize = xBatchSize;
+		input = new double[length * batchSize];
+		inputG = new double[length * batchSize];
+		output = new double[length * batchSize];
+		outputG = new double[length * batchSize];
 	}
 	
 	@Override
@@ -35,53 +43,61 @@ public class SoftmaxLayer implements NNInterface{
 
 	@Override
 	public void forward() {
-		double max = input[0];
-
-        for (int i = 1; i < input.length; ++i)
-        {
-            if (input[i] > max)
-            {
-                max = input[i];
-            }
-        }
-
-        double sum = 0;
-
-        for (int i = 0; i < input.length; ++i)
-        {
-            output[i] = Math.exp(input[i] - max);
-            sum += output[i];
-        }
-
-        for (int i = 0; i < input.length; ++i)
-        {
-            output[i] /= sum;
-        }
+		for (int k = 0; k < batchSize; k++)
+		{
+			int offset = k * length;
+			double max = input[offset];
+
+	        for (int i = offset + 1; i < offset + length; ++i)
+	        {
+	            if (input[i] > max)
+	            {
+	                max = input[i];
+	            }
+	        }
+
+	        double sum = 0;
+
+	        for (int i = offset; i < offset + length; ++i)
+	        {
+	            output[i] = Math.exp(input[i] - max);
+	            sum += output[i];
+	        }
+
+	        for (int i = offset; i < offset + length; ++i)
+	        {
+	            output[i] /= sum;
+	        }
+		}
 	}
 
 	@Override
 	public void backward() {
-		for(int i = 0; i < length; i++)
+		for(int i = 0; i < inputG.length; i++)
 		{
 			inputG[i] = 0;
 		}
 		
-		for(int i = 0; i < length; i++)
+		for (int k = 0; k < batchSize; k++)
 		{
-			if (outputG[i] == 0)
-            {
-                continue;
-            }
-			
-			for(int j = 0; j < length; j++)
+			int offset = k * length;
+			for(int i = offset; i < offset + length; i++)
 			{
-				if(i == j)
-				{
-					inputG[j] += outputG[i] * output[i] * (1 - output[j]);
-				}
-				else
+				if (outputG[i] == 0)
+	            {
+	                continue;
+	            }
+				
+				for(int j = offset; j < offset + length; j++)
 				{
-					inputG[j] += -outputG[i] * output[j] * output[i];
+					if(i == j)
+					{
+						inputG[j] += outputG[i] * output[i] * (1 - output[j]);
+					}
+					else
+					{
+						inputG[j] += -outputG[i] * output[j] * output[i];
+					}
 				}
 			}
 		}
@@ -153,7 +169,7 @@ public class SoftmaxLayer implements NNInterface{
 
 	@Override
 	public Object cloneWithTiedParams() {
-		return new SoftmaxLayer(length, linkId);
+		return new SoftmaxLayer(length, linkId, batchSize);
 	}
 
 }
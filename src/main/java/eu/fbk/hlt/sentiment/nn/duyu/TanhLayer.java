@@ -10,6 +10,8 @@ public class TanhLayer implements NNInterface{
 	public double[] outputG;
 	public int length;
 	public int linkId;
+	// examples processed at once, the buffers hold one row of length per example
+	public int batchSize = 1;
 	
 	public TanhLayer() {}
 
@@ -19,13 +21,19 @@ public class TanhLayer implements NNInterface{
     }
 	
     public TanhLayer(int xLength, int xLinkId)
+    {
+    	this(xLength, xLinkId, 1);
+    }
+	
+    public TanhLayer(int xLength, int xLinkId, int xBatchSize)
     {
     	length = xLength;
     	linkId = xLinkId;
-    	input = new double[length];
-    	inputG = new double[length];
-    	output = new double[length];
-    	outputG = new double[length];
+    	batchSize = xBatchSize;
+    	input = new double[length * batchSize];
+    	inputG = new double[length * batchSize];
+    	output = new double[length * batchSize];
+    	outputG = new double[length * batchSize];
     }
 	
 	@Override
@@ -35,7 +43,7 @@ public class TanhLayer implements NNInterface{
 
 	@Override
 	public void forward() {
-		for (int i = 0; i < length; ++i)
+		for (int i = 0; i < input.length; ++i)
         {
             if (input[i] > 0)
             {
@@ -54,7 +62,7 @@ public class TanhLayer implements NNInterface{
 
 	@Override
 	public void backward() {
-		for (int i = 0; i < length; ++i)
+		for (int i = 0; i < inputG.length; ++i)
         {
             inputG[i] = (1.0 - output[i] * output[i]) * outputG[i];
         }
@@ -124,7 +132,7 @@ public class TanhLayer implements NNInterface{
 
 	@Override
 	public Object cloneWithTiedParams() {
-		return new TanhLayer(length, linkId);
+		return new TanhLayer(length, linkId, batchSize);
 	}
 
 }
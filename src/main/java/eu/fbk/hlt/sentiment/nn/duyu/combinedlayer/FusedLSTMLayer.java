@@ -0,0 +1,249 @@
+package eu.fbk.hlt.sentiment.nn.duyu.combinedlayer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import eu.fbk.hlt.sentiment.nn.duyu.LinearLayer;
+import eu.fbk.hlt.sentiment.nn.duyu.MultiConnectLayer;
+import eu.fbk.hlt.sentiment.nn.duyu.NNInterface;
+
+public class FusedLSTMLayer implements NNInterface {
+
+	// Same model as SimplifiedLSTMLayer (h_(t-1) = c_(t-1)), current input linkId = 0, history linkId = 1.
+	// The three gates are rows of one [3h x 2h] matrix:
+	// [0, h) input gate, [h, 2h) forget gate, [2h, 3h) candidate memory cell
+	public double[] output;
+	public double[] outputG;
+
+	// writes the concatenated input and history straight into the input of the gates
+	public MultiConnectLayer connectInputHistory;
+
+	public LinearLayer gates;
+
+	// sigmoid(input gate), sigmoid(forget gate), tanh(candidate) in the layout of gates.output
+	double[] activations;
+
+	int hiddenLength;
+
+	// examples processed at once, every buffer holds one row per example
+	int batchSize = 1;
+
+	public FusedLSTMLayer() {}
+
+	public FusedLSTMLayer(int xHiddenLength) throws Exception
+	{
+		this(xHiddenLength, 1);
+	}
+
+	public FusedLSTMLayer(int xHiddenLength, int xBatchSize) throws Exception
+	{
+		this(new LinearLayer(2 * xHiddenLength, 3 * xHiddenLength, 0, xBatchSize), xHiddenLength);
+	}
+
+	public FusedLSTMLayer(LinearLayer xGates, int xHiddenLength) throws Exception
+	{
+		hiddenLength = xHiddenLength;
+
+		if(!(xGates.inputLength == 2 * hiddenLength && xGates.outputLength == 3 * hiddenLength))
+		{
+			throw new Exception("The Lengths of the gates do not match.");
+		}
+		batchSize = xGates.batchSize;
+		gates = xGates;
+
+		connectInputHistory = new MultiConnectLayer(0, new int[]{hiddenLength, hiddenLength}, batchSize);
+		connectInputHistory.link(gates);
+
+		activations = new double[3 * hiddenLength * batchSize];
+		output = new double[hiddenLength * batchSize];
+		outputG = new double[hiddenLength * batchSize];
+	}
+
+	// copies the weights of the unfused layer, the result computes the same function
+	public static FusedLSTMLayer from(SimplifiedLSTMLayer lstm) throws Exception
+	{
+		int h = lstm.hiddenLength;
+		LinearLayer stacked = new LinearLayer(2 * h, 3 * h, 0, lstm.batchSize);
+		LinearLayer[] parts = {lstm.inputLinear, lstm.forgetLinear, lstm.candidateStateLinear};
+		for(int g = 0; g < parts.length; g++)
+		{
+			System.arraycopy(parts[g].W, 0, stacked.W, g * h * 2 * h, h * 2 * h);
+			System.arraycopy(parts[g].b, 0, stacked.b, g * h, h);
+			System.arraycopy(parts[g].WAdaLR, 0, stacked.WAdaLR, g * h * 2 * h, h * 2 * h);
+			System.arraycopy(parts[g].bAdaLR, 0, stacked.bAdaLR, g * h, h);
+		}
+		return new FusedLSTMLayer(stacked, h);
+	}
+
+	@Override
+	public void randomize(Random r, double min, double max) {
+		gates.randomize(r, min, max);
+	}
+
+	@Override
+	public void forward() {
+		connectInputHistory.forward();
+		gates.forward();
+
+		double[] z = gates.output;
+		double[] history = connectInputHistory.input[1];
+		for(int k = 0; k < batchSize; k++)
+		{
+			int offset = k * 3 * hiddenLength;
+			for(int i = 0; i < hiddenLength; i++)
+			{
+				int in = offset + i;
+				int forget = in + hiddenLength;
+				int candidate = forget + hiddenLength;
+
+				activations[in] = sigmoid(z[in]);
+				activations[forget] = sigmoid(z[forget]);
+				activations[candidate] = tanh(z[candidate]);
+
+				int o = k * hiddenLength + i;
+				output[o] = activations[in] * activations[candidate] +
+							activations[forget] * history[o];
+			}
+		}
+	}
+
+	@Override
+	public void backward() {
+		double[] delta = gates.outputG;
+		double[] history = connectInputHistory.input[1];
+		for(int k = 0; k < batchSize; k++)
+		{
+			int offset = k * 3 * hiddenLength;
+			for(int i = 0; i < hiddenLength; i++)
+			{
+				int in = offset + i;
+				int forget = in + hiddenLength;
+				int candidate = forget + hiddenLength;
+				int o = k * hiddenLength + i;
+
+				double a = activations[in];
+				double f = activations[forget];
+				double c = activations[candidate];
+
+				// the same operations as in the sigmoid and tanh layers
+				delta[in] = outputG[o] * c * a * (1.0f - a);
+				delta[forget] = outputG[o] * history[o] * f * (1.0f - f);
+				delta[candidate] = (1.0 - c * c) * (outputG[o] * a);
+			}
+		}
+
+		// one product for the gradients of all the gates, summed into the input gradient
+		gates.backward();
+		connectInputHistory.backward();
+
+		// the history also goes straight to the cell through the forget gate
+		double[] historyG = connectInputHistory.inputG[1];
+		for(int k = 0; k < batchSize; k++)
+		{
+			int forget = k * 3 * hiddenLength + hiddenLength;
+			for(int i = 0; i < hiddenLength; i++)
+			{
+				int o = k * hiddenLength + i;
+				historyG[o] += outputG[o] * activations[forget + i];
+			}
+		}
+	}
+
+	@Override
+	public void update(double learningRate) {
+		gates.update(learningRate);
+	}
+
+	@Override
+	public void updateAdaGrad(double learningRate, int batchsize) {
+		gates.updateAdaGrad(learningRate, batchsize);
+	}
+
+	@Override
+	public void clearGrad() {
+		connectInputHistory.clearGrad();
+		gates.clearGrad();
+
+		Arrays.fill(outputG, 0);
+		Arrays.fill(output, 0);
+	}
+
+	@Override
+	public void link(NNInterface nextLayer, int id) throws Exception {
+		Object nextInputG = nextLayer.getInputG(id);
+		Object nextInput = nextLayer.getInput(id);
+
+		double[] nextI = (double[]) nextInput;
+		double[] nextIG = (double[]) nextInputG;
+
+		if(nextI.length != output.length || nextIG.length != outputG.length)
+		{
+			throw new Exception("The Lengths of linked layers do not match.");
+		}
+
+		output = nextI;
+		outputG = nextIG;
+	}
+
+	@Override
+	public void link(NNInterface nextLayer) throws Exception {
+		link(nextLayer, 0);
+	}
+
+	@Override
+	public Object getInput(int id) {
+		return connectInputHistory.input[id];
+	}
+
+	@Override
+	public Object getOutput(int id) {
+		return output;
+	}
+
+	@Override
+	public Object getInputG(int id) {
+		return connectInputHistory.inputG[id];
+	}
+
+	@Override
+	public Object getOutputG(int id) {
+		return outputG;
+	}
+
+	@Override
+	public Object cloneWithTiedParams() {
+
+		FusedLSTMLayer clone = null;
+		try {
+			clone = new FusedLSTMLayer((LinearLayer) gates.cloneWithTiedParams(), hiddenLength);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		return clone;
+	}
+
+	// same as SigmoidLayer
+	public static double sigmoid(double input)
+	{
+		if (input > 0)
+		{
+			double x = (float)Math.exp(-1.0 * input);
+			return 1.0f / (1.0f + x);
+		}
+		double x = (float)Math.exp(input);
+		return x / (x + 1.0f);
+	}
+
+	// same as TanhLayer
+	public static double tanh(double input)
+	{
+		if (input > 0)
+		{
+			double x = Math.exp(-2.0 * input);
+			return (1.0 - x) / (1.0 + x);
+		}
+		double x = Math.exp(2.0 * input);
+		return (x - 1.0) / (x + 1.0);
+	}
+}
@@ -32,7 +32,7 @@ public class LookupLinearTanh implements NNInterface {
 		
 		lookup = (LookupLayer) seedLookup.cloneWithTiedParams();
 		linear = (LinearLayer) seedLinear.cloneWithTiedParams();
-		tanh = new TanhLayer(outputLength);
+		tanh = new TanhLayer(outputLength, 0, seedLinear.batchSize);
 		
 		lookup.link(linear);
 		linear.link(tanh);
@@ -43,15 +43,25 @@ public class LookupLinearTanh implements NNInterface {
 		int xVocabSize,
 		int xOutputLength,
 		int xEmbeddingLength) throws Exception
+	{
+		this(xWindowSize, xVocabSize, xOutputLength, xEmbeddingLength, 1);
+	}
+	
+	public LookupLinearTanh(
+		int xWindowSize,
+		int xVocabSize,
+		int xOutputLength,
+		int xEmbeddingLength,
+		int xBatchSize) throws Exception
 	{
 		vocabSize = xVocabSize;
 		outputLength = xOutputLength;
 		embeddingLength = xEmbeddingLength;
 		windowSize = xWindowSize;
 		
-		lookup = new LookupLayer(embeddingLength, vocabSize, windowSize);
-		linear = new LinearLayer(windowSize * embeddingLength, outputLength);
-		tanh = new TanhLayer(outputLength);
+		lookup = new LookupLayer(embeddingLength, vocabSize, windowSize, 0, xBatchSize);
+		linear = new LinearLayer(windowSize * embeddingLength, outputLength, 0, xBatchSize);
+		tanh = new TanhLayer(outputLength, 0, xBatchSize);
 		
 		lookup.link(linear);
 		linear.link(tanh);
@@ -140,6 +150,7 @@ public class LookupLinearTanh implements NNInterface {
 	
 	@Override
 	public void updateAdaGrad(double learningRate, int batchsize) {
+		linear.updateAdaGrad(learningRate, batchsize);
 	}
 
 	@Override
@@ -35,31 +35,40 @@ public class SimplifiedLSTMLayer implements NNInterface {
 	
 	int hiddenLength;
 	
+	// examples processed at once, every buffer holds one row per example
+	int batchSize = 1;
+	
 	public SimplifiedLSTMLayer() {}
 	
 	public SimplifiedLSTMLayer(int xHiddenLength) throws Exception
+	{
+		this(xHiddenLength, 1);
+	}
+	
+	public SimplifiedLSTMLayer(int xHiddenLength, int xBatchSize) throws Exception
 	{
 		hiddenLength = xHiddenLength;
+		batchSize = xBatchSize;
 		
-		connectInputHistory = new MultiConnectLayer(new int[]{hiddenLength, hiddenLength});
+		connectInputHistory = new MultiConnectLayer(0, new int[]{hiddenLength, hiddenLength}, batchSize);
 		// connectInputPreOutput will link to inputLinear, forgetLinear and candidateStateLinear
 		// I did not link it to any of these three layers. 
 		// I manually link them in forward and backward.
 	
-		inputLinear = new LinearLayer(2 * hiddenLength, hiddenLength);
-		inputSigmoid = new SigmoidLayer(hiddenLength);
+		inputLinear = new LinearLayer(2 * hiddenLength, hiddenLength, 0, batchSize);
+		inputSigmoid = new SigmoidLayer(hiddenLength, 0, batchSize);
 		inputLinear.link(inputSigmoid);		
 		
-		forgetLinear = new LinearLayer(2 * hiddenLength, hiddenLength);
-		forgetSigmoid = new SigmoidLayer(hiddenLength);
+		forgetLinear = new LinearLayer(2 * hiddenLength, hiddenLength, 0, batchSize);
+		forgetSigmoid = new SigmoidLayer(hiddenLength, 0, batchSize);
 		forgetLinear.link(forgetSigmoid);
 		
-		candidateStateLinear = new LinearLayer(2 * hiddenLength, hiddenLength);
-		candidateStateTanh = new TanhLayer(hiddenLength);
+		candidateStateLinear = new LinearLayer(2 * hiddenLength, hiddenLength, 0, batchSize);
+		candidateStateTanh = new TanhLayer(hiddenLength, 0, batchSize);
 		candidateStateLinear.link(candidateStateTanh);
 		
-		output = new double[hiddenLength];
-		outputG = new double[hiddenLength];
+		output = new double[hiddenLength * batchSize];
+		outputG = new double[hiddenLength * batchSize];
 		
 	}
 	
@@ -80,26 +89,27 @@ public class SimplifiedLSTMLayer implements NNInterface {
 		{
 			System.err.println("WRONG!!!! lengthes do not match");
 		}
+		batchSize = xseedInputLinear.batchSize;
 		
-		connectInputHistory = new MultiConnectLayer(new int[]{hiddenLength, hiddenLength});
+		connectInputHistory = new MultiConnectLayer(0, new int[]{hiddenLength, hiddenLength}, batchSize);
 		// connectInputPreOutput will link to inputLinear, forgetLinear and candidateStateLinear
 		// I did not link it to any of these three layers. 
 		// I manually link them in forward and backward.
 	
 		inputLinear = (LinearLayer) xseedInputLinear.cloneWithTiedParams();
-		inputSigmoid = new SigmoidLayer(hiddenLength);
+		inputSigmoid = new SigmoidLayer(hiddenLength, 0, batchSize);
 		inputLinear.link(inputSigmoid);		
 		
 		forgetLinear = (LinearLayer) xseedForgetLinear.cloneWithTiedParams();
-		forgetSigmoid = new SigmoidLayer(hiddenLength);
+		forgetSigmoid = new SigmoidLayer(hiddenLength, 0, batchSize);
 		forgetLinear.link(forgetSigmoid);
 		
 		candidateStateLinear = (LinearLayer) xseedCandidateStatelinear.cloneWithTiedParams();
-		candidateStateTanh = new TanhLayer(hiddenLength);
+		candidateStateTanh = new TanhLayer(hiddenLength, 0, batchSize);
 		candidateStateLinear.link(candidateStateTanh);
 		
-		output = new double[hiddenLength];
-		outputG = new double[hiddenLength];
+		output = new double[hiddenLength * batchSize];
+		outputG = new double[hiddenLength * batchSize];
 	}
 	
 	@Override
@@ -116,11 +126,11 @@ public class SimplifiedLSTMLayer implements NNInterface {
 		
 		// link manually
 		System.arraycopy(connectInputHistory.output, 0, 
-				inputLinear.input, 0, hiddenLength * 2);
+				inputLinear.input, 0, hiddenLength * 2 * batchSize);
 		System.arraycopy(connectInputHistory.output, 0, 
-				forgetLinear.input, 0, hiddenLength * 2);
+				forgetLinear.input, 0, hiddenLength * 2 * batchSize);
 		System.arraycopy(connectInputHistory.output, 0, 
-				candidateStateLinear.input, 0, hiddenLength * 2);
+				candidateStateLinear.input, 0, hiddenLength * 2 * batchSize);
 		
 		inputLinear.forward();
 		inputSigmoid.forward();
@@ -131,7 +141,7 @@ public class SimplifiedLSTMLayer implements NNInterface {
 		candidateStateLinear.forward();
 		candidateStateTanh.forward();
 		
-		for(int i = 0; i < hiddenLength; i++)
+		for(int i = 0; i < hiddenLength * batchSize; i++)
 		{
 			output[i] = inputSigmoid.output[i] *  candidateStateTanh.output[i] +
 						forgetSigmoid.output[i] * connectInputHistory.input[1][i];
@@ -140,7 +150,7 @@ public class SimplifiedLSTMLayer implements NNInterface {
 
 	@Override
 	public void backward() {
-		for(int i = 0; i < hiddenLength; i++)
+		for(int i = 0; i < hiddenLength * batchSize; i++)
 		{
 			inputSigmoid.outputG[i] = outputG[i] * candidateStateTanh.output[i];
 			candidateStateTanh.outputG[i] = outputG[i] * inputSigmoid.output[i];
@@ -158,7 +168,7 @@ public class SimplifiedLSTMLayer implements NNInterface {
 		candidateStateTanh.backward();
 		candidateStateLinear.backward();
 		
-		for(int i = 0; i < 2 * hiddenLength; i++)
+		for(int i = 0; i < 2 * hiddenLength * batchSize; i++)
 		{
 			connectInputHistory.outputG[i] = inputLinear.inputG[i] +
 								forgetLinear.inputG[i] + candidateStateLinear.inputG[i];
@@ -166,7 +176,7 @@ public class SimplifiedLSTMLayer implements NNInterface {
 		connectInputHistory.backward();
 		
 		// don't forget this step.
-		for(int i = 0; i < hiddenLength; i++)
+		for(int i = 0; i < hiddenLength * batchSize; i++)
 		{
 			connectInputHistory.inputG[1][i] += outputG[i] * forgetSigmoid.output[i];
 		}
@@ -181,6 +191,9 @@ public class SimplifiedLSTMLayer implements NNInterface {
 
 	@Override
 	public void updateAdaGrad(double learningRate, int batchsize) {
+		inputLinear.updateAdaGrad(learningRate, batchsize);
+		forgetLinear.updateAdaGrad(learningRate, batchsize);
+		candidateStateLinear.updateAdaGrad(learningRate, batchsize);
 	}
 
 	@Override
@@ -0,0 +1,165 @@
+package eu.fbk.hlt.sentiment.server;
+
+import eu.fbk.hlt.sentiment.AbstractModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the sentences from concurrent requests into batches for the model
+ * A batch is dispatched when it reaches the maximum size or when its oldest sentence
+ *  has waited for the maximum latency, whichever comes first
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class MicroBatcher {
+    final static Logger logger = LoggerFactory.getLogger(MicroBatcher.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_LATENCY = 10;
+
+    protected final AbstractModel model;
+    protected final int batchSize;
+    protected final long maxLatencyNanos;
+    protected final ServerStats stats;
+    protected final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    protected final Thread dispatcher;
+    protected volatile boolean running = true;
+
+    /**
+     * @param maxLatency maximum time a sentence waits for the batch to fill up, in milliseconds
+     */
+    public MicroBatcher(AbstractModel model, int batchSize, int maxLatency, ServerStats stats) {
+        this.model = model;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        this.stats = stats;
+        this.dispatcher = new Thread(this::dispatch, "micro-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public CompletableFuture<AbstractModel.Result> submit(String sentence) {
+        Pending pending = new Pending(sentence);
+        queue.add(pending);
+        if (!running) {
+            //Stopped while the sentence was being added
+            failQueued();
+        }
+        return pending.result;
+    }
+
+    public List<CompletableFuture<AbstractModel.Result>> submitAll(List<String> sentences) {
+        List<CompletableFuture<AbstractModel.Result>> results = new ArrayList<>(sentences.size());
+        for (String sentence : sentences) {
+            results.add(submit(sentence));
+        }
+        return results;
+    }
+
+    private void dispatch() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                //Wait for the first sentence, then fill the batch until the deadline
+                Pending first = queue.take();
+                batch.add(first);
+                long deadline = first.created + maxLatencyNanos;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, new CancellationException("The batcher is stopped"));
+                break;
+            } catch (Throwable e) {
+                //The dispatcher must survive anything, otherwise all the following requests would time out
+                logger.error("Can't dispatch the batch: "+e.getClass().getSimpleName()+" "+e.getMessage());
+                fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * If the batch fails, its sentences are scored one by one, so only the failing ones get the exception
+     * Errors are handled the same way as the exceptions, the model may throw anything (e.g. assertions, native errors)
+     */
+    private void process(List<Pending> batch) {
+        List<String> sentences = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            sentences.add(pending.sentence);
+        }
+        List<AbstractModel.Result> results;
+        try {
+            results = model.predictBatch(sentences);
+            if (results.size() != batch.size()) {
+                throw new IllegalStateException("The model returned "+results.size()+" results for "+batch.size()+" sentences");
+            }
+        } catch (Throwable e) {
+            if (batch.size() > 1) {
+                logger.warn("Can't process the batch, retrying its sentences one by one: "+e.getClass().getSimpleName()+" "+e.getMessage());
+                for (Pending pending : batch) {
+                    process(Collections.singletonList(pending));
+                }
+                return;
+            }
+            logger.error("Can't process the sentence: "+e.getClass().getSimpleName()+" "+e.getMessage());
+            batch.get(0).result.completeExceptionally(e);
+            stats.addError();
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(results.get(i));
+            stats.addLatency(now - batch.get(i).created);
+        }
+        stats.addBatch(batch.size());
+    }
+
+    /**
+     * Stops the dispatcher, the sentences that are still waiting fail with a CancellationException
+     */
+    public void stop() {
+        running = false;
+        dispatcher.interrupt();
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<Pending> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        fail(pending, new CancellationException("The batcher is stopped"));
+    }
+
+    private static void fail(List<Pending> batch, Throwable e) {
+        for (Pending pending : batch) {
+            pending.result.completeExceptionally(e);
+        }
+    }
+
+    private static class Pending {
+        final String sentence;
+        final long created = System.nanoTime();
+        final CompletableFuture<AbstractModel.Result> result = new CompletableFuture<>();
+
+        Pending(String sentence) {
+            this.sentence = sentence;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package eu.fbk.hlt.sentiment.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import eu.fbk.hlt.sentiment.AbstractModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP interface to a trained model (JDK built-in server)
+ * Endpoints:
+ *  GET  /predict?text=SENTENCE
+ *  POST /predict {"sentence": "..."} or {"sentences": ["...", "..."]}
+ *  GET  /metrics throughput and latency percentiles (only if the statistics are enabled)
+ *
+ * Sentences from the concurrent requests are scored together in micro-batches (see MicroBatcher)
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class SentimentServer {
+    final static Logger logger = LoggerFactory.getLogger(SentimentServer.class);
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int REQUEST_TIMEOUT = 60;
+
+    protected final AbstractModel model;
+    protected final ObjectMapper mapper = new ObjectMapper();
+    protected final ServerStats stats = new ServerStats();
+    protected final MicroBatcher batcher;
+    protected final HttpServer server;
+    protected final ExecutorService executor;
+
+    public SentimentServer(AbstractModel model, int port, int batchSize, int maxLatency) throws IOException {
+        this(model, port, batchSize, maxLatency, true);
+    }
+
+    /**
+     * @param statistics expose the statistics of the server at /metrics
+     */
+    public SentimentServer(AbstractModel model, int port, int batchSize, int maxLatency, boolean statistics) throws IOException {
+        this.model = model;
+        this.batcher = new MicroBatcher(model, batchSize, maxLatency, stats);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        //Handlers only wait for the batcher, so the threads are cheap
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/predict", this::handlePredict);
+        if (statistics) {
+            server.createContext("/metrics", this::handleMetrics);
+        }
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Sentiment server is listening on port "+server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+        batcher.stop();
+        executor.shutdownNow();
+    }
+
+    protected void handlePredict(HttpExchange exchange) throws IOException {
+        stats.addRequest();
+        try {
+            List<String> sentences;
+            boolean bulk = false;
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    String text = getParameter(exchange, "text");
+                    if (text == null) {
+                        sendError(exchange, 400, "Missing \"text\" parameter");
+                        return;
+                    }
+                    sentences = Collections.singletonList(text);
+                    break;
+                case "POST":
+                    JsonNode request = mapper.readTree(exchange.getRequestBody());
+                    if (request != null && request.has("sentences") && request.get("sentences").isArray()) {
+                        bulk = true;
+                        sentences = new ArrayList<>(request.get("sentences").size());
+                        for (JsonNode sentence : request.get("sentences")) {
+                            sentences.add(sentence.asText());
+                        }
+                    } else if (request != null && request.has("sentence") && request.get("sentence").isTextual()) {
+                        sentences = Collections.singletonList(request.get("sentence").asText());
+                    } else {
+                        sendError(exchange, 400, "Expected {\"sentence\": \"...\"} or {\"sentences\": [...]}");
+                        return;
+                    }
+                    break;
+                default:
+                    sendError(exchange, 405, "Method is not supported");
+                    return;
+            }
+
+            List<Map<String, Object>> results = new ArrayList<>(sentences.size());
+            for (CompletableFuture<AbstractModel.Result> result : batcher.submitAll(sentences)) {
+                results.add(toJson(result.get(REQUEST_TIMEOUT, TimeUnit.SECONDS)));
+            }
+            if (bulk) {
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("results", results);
+                send(exchange, 200, response);
+            } else {
+                send(exchange, 200, results.get(0));
+            }
+        } catch (JsonProcessingException e) {
+            sendError(exchange, 400, "Can't parse the request: "+e.getOriginalMessage());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Can't process the request: "+e.getClass().getSimpleName()+" "+e.getMessage());
+            sendError(exchange, 500, "Can't process the request");
+        }
+    }
+
+    protected void handleMetrics(HttpExchange exchange) throws IOException {
+        send(exchange, 200, stats.snapshot());
+    }
+
+    protected Map<String, Object> toJson(AbstractModel.Result result) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("sentence", result.sentence);
+        json.put("label", result.getLabel());
+        Map<String, Double> probabilities = new LinkedHashMap<>();
+        List<String> classes = model.getClasses();
+        for (int i = 0; i < classes.size(); i++) {
+            probabilities.put(classes.get(i), result.probabilities.getDouble(i));
+        }
+        json.put("probabilities", probabilities);
+        return json;
+    }
+
+    private static String getParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0 && URLDecoder.decode(pair.substring(0, separator), "UTF-8").equals(name)) {
+                return URLDecoder.decode(pair.substring(separator + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        send(exchange, code, error);
+    }
+
+    private void send(HttpExchange exchange, int code, Object response) throws IOException {
+        byte[] body = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package eu.fbk.hlt.sentiment.server;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency statistics of the server
+ * Latency percentiles are computed over a window of the most recent sentences
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class ServerStats {
+    public static final int DEFAULT_WINDOW = 10000;
+
+    protected final long started = System.nanoTime();
+    protected final AtomicLong requests = new AtomicLong();
+    protected final AtomicLong sentences = new AtomicLong();
+    protected final AtomicLong batches = new AtomicLong();
+    protected final AtomicLong errors = new AtomicLong();
+
+    //Ring buffers of the latencies and the completion times of the last sentences
+    protected final long[] latencies;
+    protected final long[] completions;
+    protected long recorded = 0;
+
+    public ServerStats() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public ServerStats(int window) {
+        latencies = new long[window];
+        completions = new long[window];
+    }
+
+    public void addRequest() {
+        requests.incrementAndGet();
+    }
+
+    public void addBatch(int size) {
+        batches.incrementAndGet();
+        sentences.addAndGet(size);
+    }
+
+    public void addError() {
+        errors.incrementAndGet();
+    }
+
+    public synchronized void addLatency(long nanos) {
+        int slot = (int) (recorded % latencies.length);
+        latencies[slot] = nanos;
+        completions[slot] = System.nanoTime();
+        recorded++;
+    }
+
+    /**
+     * @return snapshot of the statistics ready to be serialized
+     */
+    public Map<String, Object> snapshot() {
+        long[] window;
+        long oldest;
+        synchronized (this) {
+            int count = (int) Math.min(recorded, latencies.length);
+            window = Arrays.copyOf(latencies, count);
+            oldest = recorded > latencies.length ? completions[(int) (recorded % latencies.length)] : started;
+        }
+        Arrays.sort(window);
+        long now = System.nanoTime();
+        double uptime = (now - started) / 1e9;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("uptime", uptime);
+        result.put("requests", requests.get());
+        result.put("sentences", sentences.get());
+        result.put("batches", batches.get());
+        result.put("errors", errors.get());
+        result.put("averageBatchSize", batches.get() == 0 ? 0.0 : (double) sentences.get() / batches.get());
+        result.put("throughput", uptime == 0 ? 0.0 : sentences.get() / uptime);
+        result.put("recentThroughput", window.length == 0 ? 0.0 : window.length / Math.max(1e-9, (now - oldest) / 1e9));
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("window", window.length);
+        latency.put("p50", percentile(window, 0.50));
+        latency.put("p90", percentile(window, 0.90));
+        latency.put("p99", percentile(window, 0.99));
+        latency.put("max", window.length == 0 ? 0.0 : toMillis(window[window.length - 1]));
+        result.put("latencyMs", latency);
+        return result;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return toMillis(sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
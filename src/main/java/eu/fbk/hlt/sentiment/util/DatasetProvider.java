@@ -3,16 +3,15 @@ package eu.fbk.hlt.sentiment.util;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.name.Named;
-import edu.stanford.nlp.pipeline.AnnotationPipeline;
-import edu.stanford.nlp.pipeline.BinarizerAnnotator;
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import eu.fbk.hlt.data.Dataset;
+import eu.fbk.hlt.data.DatasetMetaInfo;
 import eu.fbk.hlt.data.DatasetRepository;
 import eu.fbk.hlt.data.LabeledSentences;
+import eu.fbk.hlt.data.QuantizedWordVectors;
+import eu.fbk.hlt.data.SubwordVectors;
 import eu.fbk.hlt.data.WordVectors;
 
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.File;
 import java.util.*;
 
 /**
@@ -24,11 +23,25 @@ public class DatasetProvider extends AbstractModule {
     protected final String dataset;
     protected final String embeddings;
     protected final boolean threeClass;
+    protected final boolean mappedEmbeddings;
+    protected final boolean quantizedEmbeddings;
+    protected final boolean filterVocabulary;
+    protected final String vocabularyFilename;
+    protected final String[] vocabularyDatasets;
+    protected final boolean subwordFallback;
+    protected final int subwordCacheSize;
 
     public DatasetProvider(SentimentParameters params) {
         dataset = params.dataset;
         embeddings = params.embeddings;
         threeClass = params.threeClass;
+        mappedEmbeddings = params.mappedEmbeddings;
+        quantizedEmbeddings = params.quantizedEmbeddings;
+        filterVocabulary = params.filterVocabulary;
+        vocabularyFilename = params.vocabularyFilename;
+        vocabularyDatasets = params.vocabularyDatasets;
+        subwordFallback = params.subwordFallback;
+        subwordCacheSize = params.subwordCacheSize;
     }
 
     @Override
@@ -51,30 +64,62 @@ public class DatasetProvider extends AbstractModule {
     }
 
     @Provides
-    AnnotationPipeline providePipeline() {
-        //Silence output to err
-        System.setErr(new PrintStream(new OutputStream() {public void write(int b) {}}));
-
-        Properties commonProps = new Properties();
-        commonProps.setProperty("annotators", "tokenize, ssplit, parse");
-        StanfordCoreNLP pipeline = new StanfordCoreNLP(commonProps);
-        BinarizerAnnotator binarizerAnnotator = new BinarizerAnnotator("ba", new Properties());
-        pipeline.addAnnotator(binarizerAnnotator);
-
-        //Restore output to err
-        System.setErr(System.err);
-        return pipeline;
+    WordVectors provideWordVectors(DatasetRepository repository) throws Exception {
+        WordVectors vectors = loadWordVectors(repository);
+        if (subwordFallback) {
+            vectors.setSubwordFallback(new SubwordVectors(vectors, SubwordVectors.DEFAULT_BUCKETS, subwordCacheSize));
+        }
+        return vectors;
     }
 
-    @Provides
-    WordVectors provideWordVectors(DatasetRepository repository) throws Exception {
-        Dataset dataset = repository.load(this.embeddings);
+    private WordVectors loadWordVectors(DatasetRepository repository) throws Exception {
+        if (filterVocabulary) {
+            return provideFilteredWordVectors(repository);
+        }
+        Dataset dataset;
+        if (mappedEmbeddings) {
+            dataset = repository.load(this.embeddings, "mappedwordvectors");
+        } else if (quantizedEmbeddings) {
+            dataset = repository.load(this.embeddings, "quantizedwordvectors");
+        } else {
+            dataset = repository.load(this.embeddings);
+        }
         if (!(dataset instanceof WordVectors)) {
             throw new Exception("The instantiated dataset is of the wrong type");
         }
         return (WordVectors) dataset;
     }
 
+    /**
+     * Load only the words that appear in the configured datasets and in the allow-list
+     */
+    private WordVectors provideFilteredWordVectors(DatasetRepository repository) throws Exception {
+        VocabularyBuilder builder = new VocabularyBuilder();
+        List<String> datasets = new ArrayList<>();
+        datasets.add(this.dataset);
+        datasets.addAll(Arrays.asList(vocabularyDatasets));
+        for (String name : datasets) {
+            Dataset dataset = repository.load(name.trim());
+            if (!(dataset instanceof LabeledSentences)) {
+                throw new Exception("The instantiated dataset is of the wrong type");
+            }
+            try (LabeledSentences sentences = (LabeledSentences) dataset) {
+                builder.addDataset(sentences);
+            }
+        }
+        if (vocabularyFilename != null) {
+            builder.addAllowList(new File(vocabularyFilename));
+        }
+
+        DatasetMetaInfo info = repository.fetch(this.embeddings);
+        if (!info.type.equals("wordvectors")) {
+            throw new Exception("The instantiated dataset is of the wrong type");
+        }
+        return quantizedEmbeddings
+            ? new QuantizedWordVectors(info, builder.build())
+            : new WordVectors(info, builder.build());
+    }
+
     @Provides
     LabeledSentences provideDataset(DatasetRepository repository) throws Exception {
         Dataset dataset = repository.load(this.dataset);
@@ -0,0 +1,121 @@
+package eu.fbk.hlt.sentiment.util;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free asynchronous SGD (Hogwild!, Niu et al. 2011)
+ * The training samples are distributed through a bounded queue to a number of threads,
+ *  each thread trains its own replica of the model and writes the updates straight into the shared parameters
+ *
+ * The updates of different threads may overwrite each other, with the sparse updates
+ *  (and the small number of threads) it happens rarely enough not to hurt the convergence.
+ * The order of the updates depends on the scheduling, so the training is not reproducible
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class HogwildTrainer {
+    final static Logger logger = LoggerFactory.getLogger(HogwildTrainer.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    //Marks the end of the training data
+    private static final INDArray[] END = new INDArray[0];
+
+    protected final BlockingQueue<INDArray[]> queue;
+    protected final List<Thread> threads = new ArrayList<>();
+    protected final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param workers creates the replica of the model for each of the threads, called on the current thread
+     */
+    public HogwildTrainer(int threads, int queueSize, Supplier<Worker> workers) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        for (int i = 0; i < threads; i++) {
+            Worker worker = workers.get();
+            Thread thread = new Thread(() -> run(worker), "hogwild-"+threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            this.threads.add(thread);
+        }
+        this.threads.forEach(Thread::start);
+        logger.info("Hogwild training on "+threads+" threads");
+    }
+
+    private void run(Worker worker) {
+        try {
+            INDArray[] sample;
+            while ((sample = queue.take()) != END) {
+                if (failure.get() == null) {
+                    worker.train(sample[0], sample[1]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+            //Keep draining the queue so the producer doesn't block forever
+            try {
+                while (queue.take() != END) {
+                    //Skip
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands the sample to the first free thread, blocks if the threads fall behind
+     */
+    public void submit(INDArray input, INDArray label) {
+        checkFailure();
+        try {
+            queue.put(new INDArray[]{input, label});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Training was interrupted", e);
+        }
+    }
+
+    /**
+     * Waits until all the submitted samples are processed and stops the threads
+     */
+    public void finish() {
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            threads.forEach(Thread::interrupt);
+            throw new RuntimeException("Training was interrupted", e);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new RuntimeException("Can't train the replica: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replica of the model owned by a single thread
+     */
+    public interface Worker {
+        void train(INDArray input, INDArray label);
+    }
+}
@@ -0,0 +1,109 @@
+package eu.fbk.hlt.sentiment.util;
+
+import eu.fbk.hlt.data.LabeledSentences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Annotates the sentences of a dataset on a pool of worker threads ahead of the consumer
+ * A reader thread submits the sentences to the workers and puts the pending results into a bounded queue,
+ *  the consumer takes them from the queue in the original order of the dataset
+ * The size of the queue limits how far the annotation can run ahead of the consumer
+ *
+ * With no workers the sentences are annotated on the consumer thread
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class ParallelAnnotator {
+    final static Logger logger = LoggerFactory.getLogger(ParallelAnnotator.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    protected final int workers;
+    protected final int queueSize;
+
+    public ParallelAnnotator(int workers, int queueSize) {
+        this.workers = workers;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    public boolean isParallel() {
+        return workers > 0;
+    }
+
+    /**
+     * @param annotator function that is called concurrently from the worker threads
+     */
+    public <T> Iterator<T> annotate(LabeledSentences dataset, Function<LabeledSentences.Sentence, T> annotator) {
+        if (!isParallel()) {
+            return new ReadAheadIterator<T>() {
+                @Override
+                protected T read() {
+                    LabeledSentences.Sentence sentence = dataset.readNext();
+                    return sentence == null ? null : annotator.apply(sentence);
+                }
+            };
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "annotator-"+threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<Future<T>> queue = new ArrayBlockingQueue<>(queueSize);
+        //An empty result marks the end of the dataset
+        Future<T> end = CompletableFuture.completedFuture(null);
+
+        Thread reader = new Thread(() -> {
+            try {
+                LabeledSentences.Sentence sentence;
+                while ((sentence = dataset.readNext()) != null) {
+                    LabeledSentences.Sentence current = sentence;
+                    queue.put(executor.submit(() -> annotator.apply(current)));
+                }
+                queue.put(end);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                CompletableFuture<T> failure = new CompletableFuture<>();
+                failure.completeExceptionally(e);
+                try {
+                    queue.put(failure);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "annotator-reader");
+        reader.setDaemon(true);
+        reader.start();
+        logger.info("Annotating \""+dataset.getInfo().name+"\" with "+workers+" workers, queue size "+queueSize);
+
+        return new ReadAheadIterator<T>() {
+            @Override
+            protected T read() {
+                try {
+                    T result = queue.take().get();
+                    if (result == null) {
+                        executor.shutdown();
+                    }
+                    return result;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                    reader.interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    executor.shutdownNow();
+                    reader.interrupt();
+                    throw new RuntimeException("Can't annotate the sentence: "+e.getCause().getMessage(), e.getCause());
+                }
+            }
+        };
+    }
+}
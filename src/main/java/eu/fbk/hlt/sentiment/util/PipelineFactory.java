@@ -0,0 +1,79 @@
+package eu.fbk.hlt.sentiment.util;
+
+import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import edu.stanford.nlp.pipeline.BinarizerAnnotator;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+
+import javax.inject.Singleton;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds CoreNLP pipelines with the set of annotators requested by the model
+ * Pipelines are expensive to build, so the shared ones are kept per annotator set
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+@Singleton
+public class PipelineFactory {
+    protected final Map<String, AnnotationPipeline> pipelines = new ConcurrentHashMap<>();
+
+    /**
+     * @param annotators comma-separated list of annotators, e.g. "tokenize, ssplit, parse"
+     * @return pipeline shared with the other users of the same annotators
+     */
+    public AnnotationPipeline get(String annotators) {
+        return pipelines.computeIfAbsent(normalize(annotators), this::create);
+    }
+
+    /**
+     * Build a new pipeline. The binarizer is added only if the pipeline has a parser
+     * Pipelines are built one at a time: System.err is swapped for the whole process during the build,
+     *  so concurrent builds could restore each other's null stream
+     */
+    public synchronized AnnotationPipeline create(String annotators) {
+        //Silence output to err
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {public void write(int b) {}}));
+
+        try {
+            Properties commonProps = new Properties();
+            commonProps.setProperty("annotators", annotators);
+            StanfordCoreNLP pipeline = new StanfordCoreNLP(commonProps);
+            if (hasAnnotator(annotators, "parse")) {
+                BinarizerAnnotator binarizerAnnotator = new BinarizerAnnotator("ba", new Properties());
+                pipeline.addAnnotator(binarizerAnnotator);
+            }
+            return pipeline;
+        } finally {
+            //Restore output to err
+            System.setErr(err);
+        }
+    }
+
+    public static boolean hasAnnotator(String annotators, String annotator) {
+        for (String name : annotators.split(",")) {
+            if (name.trim().equals(annotator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String normalize(String annotators) {
+        StringBuilder result = new StringBuilder();
+        for (String name : annotators.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(name.trim());
+        }
+        return result.toString();
+    }
+}
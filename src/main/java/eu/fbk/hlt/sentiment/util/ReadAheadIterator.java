@@ -0,0 +1,38 @@
+package eu.fbk.hlt.sentiment.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over a source that signals its end with null
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+abstract class ReadAheadIterator<T> implements Iterator<T> {
+    private T next;
+    private boolean finished = false;
+
+    /**
+     * @return the next element or null if there are no more elements
+     */
+    protected abstract T read();
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            next = read();
+            finished = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
+    }
+}
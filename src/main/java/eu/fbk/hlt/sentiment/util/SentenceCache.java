@@ -0,0 +1,231 @@
+package eu.fbk.hlt.sentiment.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * Binary cache of the tokenized datasets in the storage directory
+ * The first pass over a dataset runs the NLP pipeline and writes every sentence to the cache,
+ *  subsequent passes stream the sentences from the cache without touching the pipeline
+ *
+ * The cache is keyed by the dataset name and a model-specific key (the annotators of the pipeline,
+ *  classes and the version of the embeddings), so any change to them results in a new cache file
+ * The format is
+ *  MAGIC VERSION KEY
+ *  LABEL LENGTH ID ID ... (unknown tokens are written as -1 followed by the word in modified UTF-8)
+ *  ...
+ *  END
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class SentenceCache {
+    final static Logger logger = LoggerFactory.getLogger(SentenceCache.class);
+
+    public static final int MAGIC = 0x544F4B43;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".tok";
+    protected static final int END = -1;
+
+    protected final File storage;
+
+    public SentenceCache(File storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Stream the tokenized sentences of the dataset from the cache
+     * If the cache doesn't exist, the sentences are taken from the source and the cache is written along the way
+     */
+    public Iterator<TokenizedSentence> stream(String dataset, String key, Supplier<Iterator<TokenizedSentence>> source) {
+        String fullKey = dataset + "|" + key;
+        File location = getLocation(dataset, fullKey);
+        if (location.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location), 1 << 16));
+                if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(fullKey)) {
+                    logger.info("Reading the tokenized sentences from "+location.getName());
+                    return new CacheReader(in, location, source);
+                }
+                in.close();
+                logger.warn("The cache file "+location.getName()+" is outdated. Overwriting");
+            } catch (IOException e) {
+                logger.error("Can't read the cache file: "+e.getClass().getSimpleName()+" "+e.getMessage());
+            }
+        }
+
+        CacheWriter writer = null;
+        try {
+            writer = new CacheWriter(location, fullKey);
+            logger.info("Tokenized sentences will be cached to "+location.getName());
+        } catch (IOException e) {
+            logger.error("Can't create the cache file: "+e.getClass().getSimpleName()+" "+e.getMessage());
+        }
+        Iterator<TokenizedSentence> sentences = source.get();
+        if (writer == null) {
+            return sentences;
+        }
+        CacheWriter cacheWriter = writer;
+        return new ReadAheadIterator<TokenizedSentence>() {
+            @Override
+            protected TokenizedSentence read() {
+                if (!sentences.hasNext()) {
+                    cacheWriter.commit();
+                    return null;
+                }
+                TokenizedSentence sentence = sentences.next();
+                cacheWriter.write(sentence);
+                return sentence;
+            }
+        };
+    }
+
+    public File getLocation(String dataset, String key) {
+        return new File(storage, dataset + "." + digest(key) + EXTENSION);
+    }
+
+    private static String digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                result.append(String.format("%02x", hash[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * If the file turns out to be corrupted, the rest of the sentences is taken from the source:
+     *  the sentences that were already read from the cache are skipped, so none of them is lost or repeated
+     */
+    private static class CacheReader extends ReadAheadIterator<TokenizedSentence> {
+        private final DataInputStream in;
+        private final File location;
+        private final Supplier<Iterator<TokenizedSentence>> source;
+        private Iterator<TokenizedSentence> fallback;
+        private long count = 0;
+
+        CacheReader(DataInputStream in, File location, Supplier<Iterator<TokenizedSentence>> source) {
+            this.in = in;
+            this.location = location;
+            this.source = source;
+        }
+
+        @Override
+        protected TokenizedSentence read() {
+            if (fallback != null) {
+                return fallback.hasNext() ? fallback.next() : null;
+            }
+            try {
+                int label = in.readInt();
+                if (label == END) {
+                    in.close();
+                    return null;
+                }
+                int[] ids = new int[in.readInt()];
+                String[] unknown = null;
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = in.readInt();
+                    if (ids[i] < 0) {
+                        if (unknown == null) {
+                            unknown = new String[ids.length];
+                        }
+                        unknown[i] = in.readUTF();
+                    }
+                }
+                count++;
+                return new TokenizedSentence(label, ids, unknown);
+            } catch (IOException e) {
+                logger.error("The cache file "+location.getName()+" is corrupted, deleting it and tokenizing the dataset again: "+e.getClass().getSimpleName()+" "+e.getMessage());
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+                location.delete();
+                fallback = source.get();
+                for (long i = 0; i < count; i++) {
+                    if (!fallback.hasNext()) {
+                        throw new IllegalStateException("The dataset has fewer sentences than its cache file "+location.getName());
+                    }
+                    fallback.next();
+                }
+                return read();
+            }
+        }
+    }
+
+    private static class CacheWriter {
+        private final File location;
+        private final File temp;
+        private DataOutputStream out;
+
+        CacheWriter(File location, String key) throws IOException {
+            this.location = location;
+            this.temp = new File(location.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+        }
+
+        void write(TokenizedSentence sentence) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeInt(sentence.label);
+                out.writeInt(sentence.ids.length);
+                for (int i = 0; i < sentence.ids.length; i++) {
+                    int id = sentence.ids[i];
+                    String word = sentence.getUnknown(i);
+                    if (id < 0) {
+                        out.writeInt(-1);
+                        out.writeUTF(word == null ? "" : word);
+                    } else {
+                        out.writeInt(id);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void commit() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeInt(END);
+                out.close();
+                out = null;
+                if (location.exists() && !location.delete()) {
+                    throw new IOException("Can't replace the cache file "+location);
+                }
+                if (!temp.renameTo(location)) {
+                    throw new IOException("Can't move the cache file to "+location);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            logger.error("Can't write the cache file, caching is disabled: "+e.getClass().getSimpleName()+" "+e.getMessage());
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {}
+            out = null;
+            temp.delete();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package eu.fbk.hlt.sentiment.util;
 
+import eu.fbk.hlt.data.SubwordVectors;
+import eu.fbk.hlt.sentiment.baseline.LSTMSentenceModel;
+import eu.fbk.hlt.sentiment.server.MicroBatcher;
+import eu.fbk.hlt.sentiment.server.SentimentServer;
 import org.apache.commons.cli.*;
 
 /**
@@ -10,6 +14,7 @@ import org.apache.commons.cli.*;
 public class SentimentParameters {
     public static final String DEFAULT_EMBEDDINGS = "glove.6B.50d";
     public static final String DEFAULT_DATASET = "lorenzo.tweet";
+    public static final int DEFAULT_TRAINING_BATCH = 32;
 
     public String dataset;
     public String embeddings;
@@ -17,11 +22,31 @@ public class SentimentParameters {
     public boolean dumpModel;
     public boolean interactiveMode;
     public boolean threeClass;
+    public boolean mappedEmbeddings;
+    public boolean quantizedEmbeddings;
+    public boolean filterVocabulary;
+    public boolean subwordFallback;
+    public boolean cacheSentences;
+    public boolean serverMode;
+    public boolean hogwild;
+    public int subwordCacheSize;
+    public int annotationWorkers;
+    public int annotationQueueSize;
+    public int serverPort;
+    public int maxBatchSize;
+    public int maxBatchLatency;
+    public int trainingThreads;
+    public int trainingBatchSize;
+    public int bpttSteps;
+    public Long seed;
 
     public String targetFolder;
     public String sentencesFilename;
     public String unknownWordsFilename;
     public String trainingStatsFilename;
+    public String vocabularyFilename;
+    public String goldFilename;
+    public String[] vocabularyDatasets;
 
     public SentimentParameters(String[] args) throws ParseException {
         //Defaults
@@ -29,11 +54,31 @@ public class SentimentParameters {
         dumpModel = false;
         interactiveMode = false;
         threeClass = false;
+        mappedEmbeddings = false;
+        quantizedEmbeddings = false;
+        filterVocabulary = false;
+        subwordFallback = false;
+        cacheSentences = false;
+        annotationWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        annotationQueueSize = ParallelAnnotator.DEFAULT_QUEUE_SIZE;
+        serverMode = false;
+        hogwild = false;
+        serverPort = SentimentServer.DEFAULT_PORT;
+        maxBatchSize = MicroBatcher.DEFAULT_BATCH_SIZE;
+        maxBatchLatency = MicroBatcher.DEFAULT_MAX_LATENCY;
+        subwordCacheSize = SubwordVectors.DEFAULT_CACHE_SIZE;
+        trainingThreads = 1;
+        trainingBatchSize = DEFAULT_TRAINING_BATCH;
+        bpttSteps = LSTMSentenceModel.DEFAULT_BPTT;
+        seed = null;
 
         targetFolder = "target";
         sentencesFilename = "sentences.tsv";
         unknownWordsFilename = "unknown_words.tsv";
         trainingStatsFilename = "training_stats.txt";
+        vocabularyFilename = null;
+        goldFilename = null;
+        vocabularyDatasets = new String[0];
 
         dataset = DEFAULT_DATASET;
         embeddings = DEFAULT_EMBEDDINGS;
@@ -44,9 +89,29 @@ public class SentimentParameters {
 
         options.addOption(builder.withDescription("Target directory for the results of analysis").withLongOpt("target").toOption("t"));
         options.addOption(new CLIOptionBuilder().withDescription("Dump the sentence model of the input instead of training the network").withLongOpt("dump-model").toOption("dm"));
-        options.addOption(new CLIOptionBuilder().withDescription("Enable a web server with statistics (on port 8080)").withLongOpt("enable-statistics").toOption("es"));
+        options.addOption(new CLIOptionBuilder().withDescription("Expose the throughput and latency statistics of the server at /metrics").withLongOpt("enable-statistics").toOption("es"));
         options.addOption(new CLIOptionBuilder().withDescription("Enable interactive mode after training").withLongOpt("interactive").toOption("i"));
         options.addOption(new CLIOptionBuilder().withDescription("Work with 3 classes instead of 5").withLongOpt("three-class").toOption("tc"));
+        options.addOption(new CLIOptionBuilder().withDescription("Memory-map the word embeddings from a binary file (converted on the first run)").withLongOpt("mapped-embeddings").toOption("me"));
+        options.addOption(new CLIOptionBuilder().withDescription("Keep the word embeddings quantized to 8 bits").withLongOpt("quantized-embeddings").toOption("qe"));
+        options.addOption(new CLIOptionBuilder().withDescription("Load only the embeddings of the words that appear in the datasets or in the vocabulary file").withLongOpt("filter-vocabulary").toOption("fv"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("file").withDescription("Allow-list of words for the vocabulary filtering (one word per line)").withLongOpt("vocabulary").toOption("v"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("datasets").withDescription("Additional comma-separated datasets for the vocabulary filtering").withLongOpt("vocabulary-datasets").toOption("vd"));
+        options.addOption(new CLIOptionBuilder().withDescription("Compose vectors for unknown words from character n-grams").withLongOpt("subword-fallback").toOption("sf"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("size").withDescription("Maximum number of composed vectors cached for unknown words").withLongOpt("subword-cache-size").toOption("sc"));
+        options.addOption(new CLIOptionBuilder().withDescription("Cache the tokenized datasets in the storage directory and skip the NLP pipeline on the next runs").withLongOpt("cache-sentences").toOption("cs"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("threads").withDescription("Number of threads annotating the training data (0 to annotate on the training thread)").withLongOpt("annotation-workers").toOption("aw"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("size").withDescription("Maximum number of sentences annotated ahead of the training").withLongOpt("annotation-queue").toOption("aq"));
+        options.addOption(new CLIOptionBuilder().withDescription("Serve the model over HTTP after training").withLongOpt("server").toOption("sv"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("port").withDescription("Port of the HTTP server").withLongOpt("port").toOption("p"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("size").withDescription("Maximum number of sentences scored together by the server").withLongOpt("max-batch").toOption("mb"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("ms").withDescription("Maximum time a sentence waits for the batch to fill up").withLongOpt("max-latency").toOption("ml"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("threads").withDescription("Number of network replicas trained in parallel on the shards of each mini-batch (1 for the sequential training)").withLongOpt("training-threads").toOption("tt"));
+        options.addOption(new CLIOptionBuilder().withDescription("Training threads update the shared weights without locks (Hogwild!) instead of the synchronous mini-batches").withLongOpt("hogwild").toOption("hw"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("size").withDescription("Number of samples per update when training on several threads").withLongOpt("training-batch").toOption("tb"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("steps").withDescription("Number of the last steps of a sentence the recurrent models propagate the gradient through (0 for the whole sentence)").withLongOpt("bptt").toOption("bp"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("seed").withDescription("Seed for the initialization and the test split, makes the training reproducible").withLongOpt("seed").toOption("sd"));
+        options.addOption(new CLIOptionBuilder().hasArg().withArgName("file").withDescription("Gold file for the comparisons (LABEL<tab>SENTENCE)").withLongOpt("gold").toOption("g"));
         options.addOption(new CLIOptionBuilder().hasArg().withArgName("dataset").withDescription("Training dataset name from the repository").withLongOpt("dataset").toOption("d"));
         options.addOption(new CLIOptionBuilder().hasArg().withArgName("embeddings").withDescription("Word embeddings that should be used").withLongOpt("embeddings").toOption("e"));
 
@@ -62,6 +127,69 @@ public class SentimentParameters {
             dumpModel = line.hasOption("dump-model");
             interactiveMode = line.hasOption("interactive");
             threeClass = line.hasOption("three-class");
+            mappedEmbeddings = line.hasOption("mapped-embeddings");
+            quantizedEmbeddings = line.hasOption("quantized-embeddings");
+            filterVocabulary = line.hasOption("filter-vocabulary");
+            if (filterVocabulary && mappedEmbeddings) {
+                throw new ParseException("Filtered embeddings are loaded into the heap, they can't be combined with the mapped embeddings");
+            }
+            if (filterVocabulary && quantizedEmbeddings) {
+                throw new ParseException("Filtered embeddings are loaded as is, they can't be combined with the quantized embeddings");
+            }
+            subwordFallback = line.hasOption("subword-fallback");
+            cacheSentences = line.hasOption("cache-sentences");
+            serverMode = line.hasOption("server");
+            hogwild = line.hasOption("hogwild");
+            goldFilename = line.getOptionValue("gold");
+            String subwordCacheSize = line.getOptionValue("subword-cache-size");
+            if (subwordCacheSize != null) {
+                this.subwordCacheSize = parseInt(subwordCacheSize, "Subword cache size");
+            }
+            String annotationWorkers = line.getOptionValue("annotation-workers");
+            if (annotationWorkers != null) {
+                this.annotationWorkers = parseInt(annotationWorkers, "Number of annotation workers");
+            }
+            String annotationQueueSize = line.getOptionValue("annotation-queue");
+            if (annotationQueueSize != null) {
+                this.annotationQueueSize = parseInt(annotationQueueSize, "Annotation queue size");
+            }
+            String serverPort = line.getOptionValue("port");
+            if (serverPort != null) {
+                this.serverPort = parseInt(serverPort, "Port");
+            }
+            String maxBatchSize = line.getOptionValue("max-batch");
+            if (maxBatchSize != null) {
+                this.maxBatchSize = parseInt(maxBatchSize, "Maximum batch size");
+            }
+            String maxBatchLatency = line.getOptionValue("max-latency");
+            if (maxBatchLatency != null) {
+                this.maxBatchLatency = parseInt(maxBatchLatency, "Maximum latency");
+            }
+            String trainingThreads = line.getOptionValue("training-threads");
+            if (trainingThreads != null) {
+                this.trainingThreads = parseInt(trainingThreads, "Number of training threads");
+            }
+            String trainingBatchSize = line.getOptionValue("training-batch");
+            if (trainingBatchSize != null) {
+                this.trainingBatchSize = parseInt(trainingBatchSize, "Training batch size");
+            }
+            String bpttSteps = line.getOptionValue("bptt");
+            if (bpttSteps != null) {
+                this.bpttSteps = parseInt(bpttSteps, "Number of BPTT steps");
+            }
+            String seed = line.getOptionValue("seed");
+            if (seed != null) {
+                try {
+                    this.seed = Long.parseLong(seed);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Seed should be an integer");
+                }
+            }
+            vocabularyFilename = line.getOptionValue("vocabulary");
+            String vocabularyDatasets = line.getOptionValue("vocabulary-datasets");
+            if (vocabularyDatasets != null) {
+                this.vocabularyDatasets = vocabularyDatasets.split(",");
+            }
             String target = line.getOptionValue("target");
             if (target != null) {
                 this.targetFolder = target;
@@ -85,4 +213,12 @@ public class SentimentParameters {
             throw e;
         }
     }
+
+    private static int parseInt(String value, String name) throws ParseException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException(name+" should be an integer");
+        }
+    }
 }
\ No newline at end of file
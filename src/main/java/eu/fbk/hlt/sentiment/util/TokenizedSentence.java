@@ -0,0 +1,29 @@
+package eu.fbk.hlt.sentiment.util;
+
+/**
+ * A sentence after the NLP pipeline: label index and the embedding ids of its (lowercased) tokens
+ * Tokens that are missing from the embeddings have a negative id and keep their text in "unknown",
+ *  so that the vectors for them can still be composed later
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class TokenizedSentence {
+    public final int label;
+    public final int[] ids;
+    //Null if all the tokens are known
+    public final String[] unknown;
+
+    public TokenizedSentence(int label, int[] ids, String[] unknown) {
+        this.label = label;
+        this.ids = ids;
+        this.unknown = unknown;
+    }
+
+    public int length() {
+        return ids.length;
+    }
+
+    public String getUnknown(int token) {
+        return unknown == null ? null : unknown[token];
+    }
+}
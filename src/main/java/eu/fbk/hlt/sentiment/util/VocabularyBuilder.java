@@ -0,0 +1,63 @@
+package eu.fbk.hlt.sentiment.util;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.TokenizerAnnotator;
+import eu.fbk.hlt.data.LabeledSentences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the set of (lowercased) tokens that the models are going to look up in the embeddings
+ * Tokenization is the same as in the "tokenize" annotator of the pipeline
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class VocabularyBuilder {
+    final static Logger logger = LoggerFactory.getLogger(VocabularyBuilder.class);
+
+    protected final Set<String> vocabulary = ConcurrentHashMap.newKeySet();
+    protected final TokenizerAnnotator tokenizer = new TokenizerAnnotator(false);
+
+    /**
+     * Add all the tokens from the dataset
+     */
+    public VocabularyBuilder addDataset(LabeledSentences dataset) {
+        int before = vocabulary.size();
+        dataset.readAll().parallelStream().forEach(sentence -> {
+            for (CoreLabel token : tokenizer.getTokenizer(new StringReader(sentence.sentence)).tokenize()) {
+                vocabulary.add(token.word().toLowerCase());
+            }
+        });
+        logger.info("Dataset \""+dataset.getInfo().name+"\" added "+(vocabulary.size()-before)+" words to the vocabulary");
+        return this;
+    }
+
+    /**
+     * Add the words from the allow-list file (one word per line)
+     */
+    public VocabularyBuilder addAllowList(File file) throws IOException {
+        int before = vocabulary.size();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    vocabulary.add(line.toLowerCase());
+                }
+            }
+        }
+        logger.info("Allow-list \""+file.getName()+"\" added "+(vocabulary.size()-before)+" words to the vocabulary");
+        return this;
+    }
+
+    public Set<String> build() {
+        return Collections.unmodifiableSet(new HashSet<>(vocabulary));
+    }
+}
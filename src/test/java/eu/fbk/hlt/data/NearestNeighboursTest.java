@@ -0,0 +1,180 @@
+package eu.fbk.hlt.data;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the neighbours found by the forest against a brute-force cosine scan of the whole vocabulary
+ *  and the persistence of the index in the storage
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class NearestNeighboursTest {
+    private static final int WORDS = 2000;
+    private static final int DIM = 12;
+    private static final int K = 10;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testRecallAgainstBruteForce() throws Exception {
+        WordVectors vectors = vectors("test-vectors", WORDS, DIM);
+        NearestNeighbours index = new NearestNeighbours(vectors);
+        //Fewer trees and smaller leaves than the default, so the search doesn't end up checking the whole vocabulary
+        index.build(8, 16, new Random(42));
+
+        int found = 0;
+        int total = 0;
+        for (int i = 0; i < 200; i++) {
+            String word = "w" + random.nextInt(WORDS);
+            List<NearestNeighbours.Neighbour> neighbours = index.nearest(word, K);
+            assertEquals(word, K, neighbours.size());
+            Set<Integer> ids = new HashSet<>();
+            for (int j = 0; j < neighbours.size(); j++) {
+                NearestNeighbours.Neighbour neighbour = neighbours.get(j);
+                assertNotEquals(word, vectors.idOf(word), neighbour.id);
+                assertEquals(vectors.wordOf(neighbour.id), neighbour.word);
+                if (j > 0) {
+                    assertTrue(word, neighbours.get(j - 1).similarity >= neighbour.similarity);
+                }
+                ids.add(neighbour.id);
+            }
+            for (int id : bruteForce(vectors, vectors.idOf(word), K)) {
+                if (ids.contains(id)) {
+                    found++;
+                }
+                total++;
+            }
+        }
+        double recall = (double) found / total;
+        assertTrue("recall@" + K + " " + recall, recall >= 0.8);
+
+        //With a budget larger than the vocabulary every word is checked
+        index.setSearchFactor(WORDS);
+        for (int i = 0; i < 20; i++) {
+            int id = random.nextInt(WORDS);
+            List<Integer> expected = bruteForce(vectors, id, K);
+            List<Integer> actual = new ArrayList<>();
+            for (NearestNeighbours.Neighbour neighbour : index.nearest(vectors.wordOf(id), K)) {
+                actual.add(neighbour.id);
+            }
+            assertEquals(expected, actual);
+        }
+        assertTrue(index.nearest("unknown", K).isEmpty());
+    }
+
+    @Test
+    public void testStorage() throws Exception {
+        File storage = Files.createTempDirectory("ann").toFile();
+        try {
+            Configuration configuration = new Configuration();
+            configuration.setStorage(storage);
+            WordVectors vectors = vectors("test-vectors", 500, DIM);
+            NearestNeighbours built = NearestNeighbours.load(vectors, configuration);
+            File[] files = storage.listFiles();
+            assertEquals(1, files.length);
+            File location = files[0];
+            long modified = location.lastModified();
+
+            //The second load reads the same forest back
+            NearestNeighbours loaded = NearestNeighbours.load(vectors, configuration);
+            assertEquals(built.leafSize, loaded.leafSize);
+            assertEquals(built.trees.length, loaded.trees.length);
+            for (int i = 0; i < 50; i++) {
+                String word = "w" + random.nextInt(500);
+                assertNeighboursEqual(built.nearest(word, K), loaded.nearest(word, K));
+            }
+            assertEquals(modified, location.lastModified());
+
+            //Same name and words, so the same file, but a different dimension: the index is rebuilt and replaced
+            WordVectors changed = vectors("test-vectors", 500, DIM + 1);
+            assertNotEquals(vectors.getVersion(), changed.getVersion());
+            NearestNeighbours rebuilt = NearestNeighbours.load(changed, configuration);
+            assertEquals(1, storage.listFiles().length);
+            assertEquals(NearestNeighbours.DEFAULT_TREES, rebuilt.trees.length);
+            assertEquals(K, rebuilt.nearest("w0", K).size());
+            assertFalse(new NearestNeighbours(vectors).read(location));
+            assertTrue(new NearestNeighbours(changed).read(location));
+        } finally {
+            File[] files = storage.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    assertTrue(file.delete());
+                }
+            }
+            assertTrue(storage.delete());
+        }
+    }
+
+    private static void assertNeighboursEqual(List<NearestNeighbours.Neighbour> expected, List<NearestNeighbours.Neighbour> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).id, actual.get(i).id);
+            assertEquals(expected.get(i).similarity, actual.get(i).similarity, 0.0);
+        }
+    }
+
+    /**
+     * @return ids of the k words most similar to the word, in order of similarity
+     */
+    private static List<Integer> bruteForce(WordVectors vectors, int query, int k) {
+        double[] vector = new double[vectors.getDim()];
+        double[] other = new double[vectors.getDim()];
+        vectors.copyInto(query, vector, 0);
+        double[] similarities = new double[vectors.size()];
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < vectors.size(); id++) {
+            vectors.copyInto(id, other, 0);
+            double dot = 0.0;
+            double norm = 0.0;
+            double otherNorm = 0.0;
+            for (int j = 0; j < vector.length; j++) {
+                dot += vector[j] * other[j];
+                norm += vector[j] * vector[j];
+                otherNorm += other[j] * other[j];
+            }
+            if (id == query || otherNorm == 0.0) {
+                continue;
+            }
+            similarities[id] = dot / Math.sqrt(norm * otherNorm);
+            ids.add(id);
+        }
+        ids.sort((a, b) -> Double.compare(similarities[b], similarities[a]));
+        return ids.subList(0, k);
+    }
+
+    /**
+     * Words scattered around a few centers, so that every word has a meaningful neighbourhood
+     */
+    private WordVectors vectors(String name, int words, int dim) throws Exception {
+        double[][] centers = new double[20][dim];
+        for (double[] center : centers) {
+            for (int j = 0; j < dim; j++) {
+                center[j] = random.nextGaussian();
+            }
+        }
+        File file = File.createTempFile("vectors", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < words; i++) {
+                double[] center = centers[random.nextInt(centers.length)];
+                StringBuilder line = new StringBuilder("w").append(i);
+                for (int j = 0; j < dim; j++) {
+                    line.append(' ').append((float) (center[j] + 0.5 * random.nextGaussian()));
+                }
+                writer.println(line);
+            }
+        }
+        DatasetMetaInfo info = new DatasetMetaInfo();
+        info.name = name;
+        info.compression = DatasetMetaInfo.Compression.PLAIN;
+        info.updateOffline(file);
+        return new WordVectors(info);
+    }
+}
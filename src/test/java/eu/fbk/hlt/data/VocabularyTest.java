@@ -0,0 +1,129 @@
+package eu.fbk.hlt.data;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the perfect hash lookups against the positions of the words they were built from
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class VocabularyTest {
+    //Two-byte, three-byte and four-byte (surrogate pair) UTF-8 sequences
+    private static final String[] NON_ASCII = {"città", "naïve", "ελληνικά", "дом", "日本語", "😀", "a😀b", "𐐨𐐯", "𝐀"};
+
+    private static String[] words(int count) {
+        String[] words = new String[count + NON_ASCII.length];
+        for (int i = 0; i < count; i++) {
+            words[i] = "w" + i;
+        }
+        System.arraycopy(NON_ASCII, 0, words, count, NON_ASCII.length);
+        return words;
+    }
+
+    @Test
+    public void testIdsFollowTheOrderOfTheWords() {
+        String[] words = words(5000);
+        Vocabulary vocabulary = Vocabulary.build(words);
+        assertEquals(words.length, vocabulary.size());
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(words[i], i, vocabulary.idOf(words[i]));
+            assertEquals(words[i], vocabulary.wordOf(i));
+        }
+    }
+
+    @Test
+    public void testUnknownWords() {
+        Vocabulary vocabulary = Vocabulary.build(words(5000));
+        String[] unknown = {"", "w", "w5000", "w-1", "W1", "w1 ", "citta", "città!", "日本", "😁", "a😀", "\uD835"};
+        for (String word : unknown) {
+            assertEquals(word, Vocabulary.NOT_FOUND, vocabulary.idOf(word));
+        }
+        for (int i = 5000; i < 10000; i++) {
+            assertEquals(Vocabulary.NOT_FOUND, vocabulary.idOf("w" + i));
+        }
+    }
+
+    @Test
+    public void testLookupOfCharSequences() {
+        Vocabulary vocabulary = Vocabulary.build(words(100));
+        for (int i = 0; i < NON_ASCII.length; i++) {
+            assertEquals(100 + i, vocabulary.idOf(new StringBuilder(NON_ASCII[i])));
+        }
+    }
+
+    @Test
+    public void testLowerCaseLookup() {
+        String[] words = words(1000);
+        Vocabulary vocabulary = Vocabulary.build(words);
+        String[] queries = {"W1", "w999", "W999", "CITTÀ", "Naïve", "ΕΛΛΗΝΙΚΆ", "ДОМ", "日本語", "A😀B", "𐐀𐐇", "𐐨𐐇", "W1000", "CITTA"};
+        for (String query : queries) {
+            assertEquals(query, vocabulary.idOf(query.toLowerCase(Locale.ROOT)), vocabulary.idOfLowerCase(query));
+        }
+        for (String word : words) {
+            assertEquals(word, vocabulary.idOf(word), vocabulary.idOfLowerCase(word.toUpperCase(Locale.ROOT)));
+        }
+        //The stored words aren't lowercased
+        Vocabulary upper = Vocabulary.build(new String[]{"Word"});
+        assertEquals(0, upper.idOf("Word"));
+        assertEquals(Vocabulary.NOT_FOUND, upper.idOfLowerCase("Word"));
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        String[] words = words(3000);
+        Vocabulary vocabulary = Vocabulary.build(words);
+        Vocabulary copy = roundTrip(vocabulary);
+        assertEquals(vocabulary.size(), copy.size());
+        assertEquals(vocabulary.fingerprint(), copy.fingerprint());
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(i, copy.idOf(words[i]));
+            assertEquals(words[i], copy.wordOf(i));
+        }
+        assertEquals(Vocabulary.NOT_FOUND, copy.idOf("w3000"));
+    }
+
+    @Test
+    public void testEmptyVocabulary() throws IOException {
+        Vocabulary vocabulary = Vocabulary.build(new String[0]);
+        assertEquals(0, vocabulary.size());
+        assertEquals(Vocabulary.NOT_FOUND, vocabulary.idOf("w0"));
+        assertEquals(Vocabulary.NOT_FOUND, vocabulary.idOf(""));
+        assertEquals(Vocabulary.NOT_FOUND, vocabulary.idOfLowerCase("W0"));
+
+        Vocabulary copy = roundTrip(vocabulary);
+        assertEquals(0, copy.size());
+        assertEquals(Vocabulary.NOT_FOUND, copy.idOf("w0"));
+    }
+
+    @Test
+    public void testFingerprintDependsOnTheOrder() {
+        assertNotEquals(Vocabulary.build(new String[]{"a", "b"}).fingerprint(), Vocabulary.build(new String[]{"b", "a"}).fingerprint());
+        assertEquals(Vocabulary.build(words(10)).fingerprint(), Vocabulary.build(words(10)).fingerprint());
+    }
+
+    @Test
+    public void testFingerprintDependsOnTheBoundaries() {
+        assertNotEquals(Vocabulary.build(new String[]{"ab", "c"}).fingerprint(), Vocabulary.build(new String[]{"a", "bc"}).fingerprint());
+        assertNotEquals(Vocabulary.build(new String[]{"", "abc"}).fingerprint(), Vocabulary.build(new String[]{"abc", ""}).fingerprint());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateWords() {
+        Vocabulary.build(new String[]{"a", "b", "a"});
+    }
+
+    private static Vocabulary roundTrip(Vocabulary vocabulary) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            vocabulary.write(out);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            return Vocabulary.read(in);
+        }
+    }
+}
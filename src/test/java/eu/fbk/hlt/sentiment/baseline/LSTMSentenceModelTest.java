@@ -0,0 +1,203 @@
+package eu.fbk.hlt.sentiment.baseline;
+
+import eu.fbk.hlt.data.DatasetMetaInfo;
+import eu.fbk.hlt.data.WordVectors;
+import eu.fbk.hlt.sentiment.nn.duyu.combinedlayer.FusedLSTMLayer;
+import eu.fbk.hlt.sentiment.util.PipelineFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the workspace of the model (batched input projections, ring buffers, split weight gradients)
+ *  with a step-by-step unrolling of the same network that keeps the whole history
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class LSTMSentenceModelTest {
+    private static final double EPSILON = 1e-12;
+    private static final int DIM = 4;
+    private static final int CLASSES = 3;
+
+    private final Random random = new Random(42);
+    private LSTMSentenceModel model;
+
+    @Before
+    public void setUp() throws Exception {
+        model = new LSTMSentenceModel(Arrays.asList("1", "2", "3"), embeddings(), new PipelineFactory());
+        model.gates.randomize(random, -0.3, 0.3);
+        model.linear.randomize(random, -0.3, 0.3);
+    }
+
+    @Test
+    public void testTruncatedBackPropagation() throws Exception {
+        //Sentences shorter than, as long as and longer than the truncation, so the ring buffer wraps around
+        for (int steps : new int[]{0, 1, 3, 20}) {
+            model.setBpttSteps(steps);
+            for (int length : new int[]{1, 3, 5, 12}) {
+                LSTMSentenceModel.Workspace workspace = model.new Workspace();
+                double[][] sentence = sentence(length);
+                int label = random.nextInt(CLASSES);
+
+                double[] WG = new double[model.gates.W.length];
+                double[] bG = new double[model.gates.b.length];
+                double[] probabilities = new double[CLASSES];
+                double expectedLoss = unroll(sentence, label, steps, probabilities, WG, bG);
+
+                String name = "bptt " + steps + ", " + length + " words";
+                assertArrayEquals(name, probabilities, workspace.forward(Nd4j.create(sentence)), EPSILON);
+                assertEquals(name, expectedLoss, workspace.backward(label), EPSILON);
+                assertArrayEquals(name, WG, workspace.gates.WG, EPSILON);
+                assertArrayEquals(name, bG, workspace.gates.bG, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testWorkspaceReuse() throws Exception {
+        model.setBpttSteps(3);
+        LSTMSentenceModel.Workspace reused = model.new Workspace();
+        //A longer sentence leaves the buffers bigger and filled with its values
+        reused.forward(Nd4j.create(sentence(9)));
+        reused.backward(0);
+        reused.clearGrad();
+
+        double[][] sentence = sentence(4);
+        LSTMSentenceModel.Workspace fresh = model.new Workspace();
+        assertArrayEquals(fresh.forward(Nd4j.create(sentence)), reused.forward(Nd4j.create(sentence)), 0.0);
+        assertEquals(fresh.backward(1), reused.backward(1), 0.0);
+        assertArrayEquals(fresh.gates.WG, reused.gates.WG, 0.0);
+    }
+
+    @Test
+    public void testNumericGradient() throws Exception {
+        model.setBpttSteps(0);
+        LSTMSentenceModel.Workspace workspace = model.new Workspace();
+        double[][] sentence = sentence(6);
+        int label = 2;
+        workspace.forward(Nd4j.create(sentence));
+        workspace.backward(label);
+
+        //The gradient is the one of the log-likelihood. The sigmoid is rounded to floats, so the step can't be small
+        double epsilon = 1e-2;
+        double[] W = model.gates.W;
+        for (int k = 0; k < 20; k++) {
+            int i = random.nextInt(W.length);
+            double value = W[i];
+            W[i] = value + epsilon;
+            double plus = Math.log(workspace.forward(Nd4j.create(sentence))[label]);
+            W[i] = value - epsilon;
+            double minus = Math.log(workspace.forward(Nd4j.create(sentence))[label]);
+            W[i] = value;
+            double numeric = (plus - minus) / (2 * epsilon);
+            double analytic = workspace.gates.WG[i];
+            assertEquals("W[" + i + "]", numeric, analytic, 1e-3 * Math.max(1e-3, Math.abs(numeric) + Math.abs(analytic)));
+        }
+    }
+
+    /**
+     * Plain unrolling of the network over the whole sentence
+     * @return loss, the gradients of the log-likelihood over the last steps are added to WG and bG
+     */
+    private double unroll(double[][] sentence, int label, int steps, double[] probabilities, double[] WG, double[] bG) {
+        int h = DIM;
+        int length = sentence.length;
+        double[] W = model.gates.W;
+        double[] b = model.gates.b;
+        double[][] states = new double[length + 1][h];
+        double[][] gates = new double[length][3 * h];
+        for (int t = 0; t < length; t++) {
+            for (int r = 0; r < 3 * h; r++) {
+                double z = b[r];
+                for (int j = 0; j < h; j++) {
+                    z += W[r * 2 * h + j] * sentence[t][j] + W[r * 2 * h + h + j] * states[t][j];
+                }
+                gates[t][r] = r < 2 * h ? FusedLSTMLayer.sigmoid(z) : FusedLSTMLayer.tanh(z);
+            }
+            for (int i = 0; i < h; i++) {
+                states[t + 1][i] = gates[t][i] * gates[t][2 * h + i] + gates[t][h + i] * states[t][i];
+            }
+        }
+
+        double[] linearW = model.linear.W;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < CLASSES; c++) {
+            probabilities[c] = model.linear.b[c];
+            for (int i = 0; i < h; i++) {
+                probabilities[c] += linearW[c * h + i] * states[length][i];
+            }
+            max = Math.max(max, probabilities[c]);
+        }
+        double sum = 0.0;
+        for (int c = 0; c < CLASSES; c++) {
+            probabilities[c] = Math.exp(probabilities[c] - max);
+            sum += probabilities[c];
+        }
+        for (int c = 0; c < CLASSES; c++) {
+            probabilities[c] /= sum;
+        }
+
+        double[] stateG = new double[h];
+        for (int c = 0; c < CLASSES; c++) {
+            double logitG = (c == label ? 1.0 : 0.0) - probabilities[c];
+            for (int i = 0; i < h; i++) {
+                stateG[i] += linearW[c * h + i] * logitG;
+            }
+        }
+        int first = steps > 0 ? Math.max(0, length - steps) : 0;
+        for (int t = length - 1; t >= first; t--) {
+            double[] deltas = new double[3 * h];
+            double[] previousG = new double[h];
+            for (int i = 0; i < h; i++) {
+                double a = gates[t][i];
+                double f = gates[t][h + i];
+                double c = gates[t][2 * h + i];
+                deltas[i] = stateG[i] * c * a * (1 - a);
+                deltas[h + i] = stateG[i] * states[t][i] * f * (1 - f);
+                deltas[2 * h + i] = (1 - c * c) * stateG[i] * a;
+                previousG[i] = stateG[i] * f;
+            }
+            for (int r = 0; r < 3 * h; r++) {
+                bG[r] += deltas[r];
+                for (int j = 0; j < h; j++) {
+                    WG[r * 2 * h + j] += deltas[r] * sentence[t][j];
+                    WG[r * 2 * h + h + j] += deltas[r] * states[t][j];
+                    previousG[j] += deltas[r] * W[r * 2 * h + h + j];
+                }
+            }
+            stateG = previousG;
+        }
+        return -Math.log(probabilities[label]);
+    }
+
+    private double[][] sentence(int length) {
+        double[][] sentence = new double[length][DIM];
+        for (double[] word : sentence) {
+            for (int j = 0; j < DIM; j++) {
+                word[j] = random.nextGaussian();
+            }
+        }
+        return sentence;
+    }
+
+    private static WordVectors embeddings() throws Exception {
+        File file = File.createTempFile("vectors", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("good 0.1 0.2 0.3 0.4");
+            writer.println("bad -0.1 -0.2 -0.3 -0.4");
+        }
+        DatasetMetaInfo info = new DatasetMetaInfo();
+        info.name = "test-vectors";
+        info.compression = DatasetMetaInfo.Compression.PLAIN;
+        info.updateOffline(file);
+        return new WordVectors(info);
+    }
+}
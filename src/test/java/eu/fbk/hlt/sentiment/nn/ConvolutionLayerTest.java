@@ -0,0 +1,108 @@
+package eu.fbk.hlt.sentiment.nn;
+
+import eu.fbk.hlt.sentiment.nn.duyu.LinearLayer;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the GEMM formulation of the convolution with a window-by-window loop
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class ConvolutionLayerTest {
+    private static final double EPSILON = 1e-12;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testAgainstWindowLoop() {
+        for (int windowDim : new int[]{1, 2, 3}) {
+            for (int elementDim : new int[]{1, 5, 8}) {
+                for (int outputDim : new int[]{1, 3, 6}) {
+                    ConvolutionLayer layer = new ConvolutionLayer(windowDim, elementDim, outputDim);
+                    layer.randomize(random, -0.5, 0.5);
+                    //A longer input first, so the shorter ones run in a workspace that was grown before
+                    for (int elements : new int[]{windowDim + 6, windowDim, windowDim + 2}) {
+                        compare(layer, elements);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLengthLimitsTheInput() {
+        ConvolutionLayer layer = new ConvolutionLayer(2, 4, 3);
+        layer.randomize(random, -0.5, 0.5);
+        double[] input = vector(7 * 4);
+        layer.setInput(input, 5 * 4);
+        layer.forward();
+        double[] limited = layer.output.clone();
+
+        double[] exact = new double[5 * 4];
+        System.arraycopy(input, 0, exact, 0, exact.length);
+        layer.setInput(exact);
+        layer.forward();
+        assertArrayEquals(limited, layer.output, 0.0);
+    }
+
+    private void compare(ConvolutionLayer layer, int elements) {
+        int windowDim = layer.windowDim;
+        int elementDim = layer.elementDim;
+        int outputDim = layer.outputDim;
+        int windowLength = windowDim * elementDim;
+        int positions = elements - windowDim + 1;
+        LinearLayer linear = layer.getLinear();
+        double[] input = vector(elements * elementDim);
+        double[] outputG = vector(outputDim);
+
+        //Reference: every window position on its own
+        double[] output = new double[outputDim];
+        double[] inputG = new double[input.length];
+        double[] WG = new double[linear.W.length];
+        double[] bG = new double[outputDim];
+        for (int position = 0; position < positions; position++) {
+            int offset = position * elementDim;
+            for (int i = 0; i < outputDim; i++) {
+                double sum = linear.b[i];
+                for (int j = 0; j < windowLength; j++) {
+                    sum += linear.W[i * windowLength + j] * input[offset + j];
+                }
+                double activation = Math.tanh(sum);
+                output[i] += activation / positions;
+
+                double delta = outputG[i] / positions * (1.0 - activation * activation);
+                bG[i] += delta;
+                for (int j = 0; j < windowLength; j++) {
+                    WG[i * windowLength + j] += delta * input[offset + j];
+                    inputG[offset + j] += delta * linear.W[i * windowLength + j];
+                }
+            }
+        }
+
+        layer.setInput(input);
+        layer.forward();
+        String shape = windowDim + "x" + elementDim + "->" + outputDim + ", " + elements + " elements";
+        assertArrayEquals("output " + shape, output, layer.output, EPSILON);
+
+        System.arraycopy(outputG, 0, layer.outputG, 0, outputDim);
+        layer.backward();
+        double[] actualInputG = new double[input.length];
+        System.arraycopy((double[]) layer.getInputG(0), 0, actualInputG, 0, input.length);
+        assertArrayEquals("inputG " + shape, inputG, actualInputG, EPSILON);
+        assertArrayEquals("WG " + shape, WG, linear.WG, EPSILON);
+        assertArrayEquals("bG " + shape, bG, linear.bG, EPSILON);
+        layer.clearGrad();
+    }
+
+    private double[] vector(int length) {
+        double[] vector = new double[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = random.nextGaussian();
+        }
+        return vector;
+    }
+}
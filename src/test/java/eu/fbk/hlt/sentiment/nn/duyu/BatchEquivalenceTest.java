@@ -0,0 +1,144 @@
+package eu.fbk.hlt.sentiment.nn.duyu;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * A layer with a batch of N examples should compute the same as N passes of the layer with a single example:
+ *  every row of the output and of the input gradient, and the parameter gradients summed over the examples
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class BatchEquivalenceTest {
+    private static final double EPSILON = 1e-12;
+    private static final int BATCH = 5;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testLinearLayer() {
+        for (int[] shape : new int[][]{{1, 1}, {7, 5}, {12, 9}}) {
+            LinearLayer batch = new LinearLayer(shape[0], shape[1], 0, BATCH);
+            batch.randomize(random, -0.5, 0.5);
+            LinearLayer single = new LinearLayer(shape[0], shape[1]);
+            System.arraycopy(batch.W, 0, single.W, 0, batch.W.length);
+            System.arraycopy(batch.b, 0, single.b, 0, batch.b.length);
+            compare(batch, single, shape[0], shape[1], "LinearLayer " + shape[0] + "x" + shape[1]);
+            assertArrayEquals("WG", single.WG, batch.WG, EPSILON);
+            assertArrayEquals("bG", single.bG, batch.bG, EPSILON);
+
+            //The updates see the same gradients
+            batch.updateAdaGrad(0.1, BATCH);
+            single.updateAdaGrad(0.1, BATCH);
+            assertArrayEquals("W", single.W, batch.W, EPSILON);
+            assertArrayEquals("b", single.b, batch.b, EPSILON);
+        }
+    }
+
+    @Test
+    public void testActivations() {
+        compare(new SigmoidLayer(6, 0, BATCH), new SigmoidLayer(6), 6, 6, "SigmoidLayer");
+        compare(new TanhLayer(6, 0, BATCH), new TanhLayer(6), 6, 6, "TanhLayer");
+        compare(new SoftmaxLayer(6, 0, BATCH), new SoftmaxLayer(6), 6, 6, "SoftmaxLayer");
+    }
+
+    @Test
+    public void testAverageLayer() {
+        compare(new AverageLayer(12, 4, 0, BATCH), new AverageLayer(12, 4), 12, 4, "AverageLayer");
+    }
+
+    @Test
+    public void testMultiConnectLayer() {
+        int[] lengths = {3, 1, 4};
+        MultiConnectLayer batch = new MultiConnectLayer(0, lengths, BATCH);
+        MultiConnectLayer single = new MultiConnectLayer(lengths);
+        for (double[] input : batch.input) {
+            fill(input);
+        }
+        fill(batch.outputG);
+        batch.forward();
+        batch.backward();
+
+        int outputLength = batch.outputLength;
+        for (int k = 0; k < BATCH; k++) {
+            for (int id = 0; id < lengths.length; id++) {
+                System.arraycopy(batch.input[id], k * lengths[id], single.input[id], 0, lengths[id]);
+            }
+            single.forward();
+            assertArrayEquals("output " + k, single.output, row(batch.output, k, outputLength), 0.0);
+            System.arraycopy(batch.outputG, k * outputLength, single.outputG, 0, outputLength);
+            single.backward();
+            for (int id = 0; id < lengths.length; id++) {
+                assertArrayEquals("inputG " + id + " " + k, single.inputG[id], row(batch.inputG[id], k, lengths[id]), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testLookupLayer() {
+        int embedding = 4;
+        int words = 3;
+        LookupLayer batch = new LookupLayer(embedding, 20, words, 0, BATCH);
+        batch.randomize(random, -1.0, 1.0);
+        LookupLayer single = new LookupLayer(embedding, 20, words);
+        System.arraycopy(batch.table, 0, single.table, 0, batch.table.length);
+
+        //The examples share some words, so their gradients are summed into the same rows
+        for (int i = 0; i < batch.input.length; i++) {
+            batch.input[i] = random.nextInt(10) == 0 ? -1 : random.nextInt(8);
+        }
+        fill(batch.outputG);
+        batch.forward();
+        batch.backward();
+
+        int outputLength = embedding * words;
+        for (int k = 0; k < BATCH; k++) {
+            System.arraycopy(batch.input, k * words, single.input, 0, words);
+            single.forward();
+            assertArrayEquals("output " + k, single.output, row(batch.output, k, outputLength), 0.0);
+            System.arraycopy(batch.outputG, k * outputLength, single.outputG, 0, outputLength);
+            single.backward();
+        }
+        batch.updateAdaGrad(0.1, BATCH);
+        single.updateAdaGrad(0.1, BATCH);
+        assertArrayEquals("table", single.table, batch.table, EPSILON);
+    }
+
+    /**
+     * Runs the batch at once and then every example through the single layer (the gradients of the parameters
+     *  of the single layer are accumulated over the examples)
+     */
+    private void compare(NNInterface batch, NNInterface single, int inputLength, int outputLength, String name) {
+        fill((double[]) batch.getInput(0));
+        fill((double[]) batch.getOutputG(0));
+        batch.forward();
+        batch.backward();
+
+        double[] batchInput = (double[]) batch.getInput(0);
+        double[] batchOutputG = (double[]) batch.getOutputG(0);
+        for (int k = 0; k < BATCH; k++) {
+            System.arraycopy(batchInput, k * inputLength, (double[]) single.getInput(0), 0, inputLength);
+            single.forward();
+            assertArrayEquals(name + " output " + k, (double[]) single.getOutput(0),
+                row((double[]) batch.getOutput(0), k, outputLength), EPSILON);
+            System.arraycopy(batchOutputG, k * outputLength, (double[]) single.getOutputG(0), 0, outputLength);
+            single.backward();
+            assertArrayEquals(name + " inputG " + k, (double[]) single.getInputG(0),
+                row((double[]) batch.getInputG(0), k, inputLength), EPSILON);
+        }
+    }
+
+    private static double[] row(double[] batch, int k, int length) {
+        return Arrays.copyOfRange(batch, k * length, (k + 1) * length);
+    }
+
+    private void fill(double[] array) {
+        for (int i = 0; i < array.length; i++) {
+            array[i] = random.nextGaussian();
+        }
+    }
+}
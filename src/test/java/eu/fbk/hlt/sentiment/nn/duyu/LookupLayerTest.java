@@ -0,0 +1,105 @@
+package eu.fbk.hlt.sentiment.nn.duyu;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sparse gradient arena of the lookup layer with a map of the gradients of the touched rows
+ * The number of distinct words per pass grows from a few to hundreds, so the arena and its hash
+ *  are resized and then reused after clearGrad
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class LookupLayerTest {
+    private static final double EPSILON = 1e-12;
+    private static final int EMBEDDING = 6;
+    private static final int VOCABULARY = 1000;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testPlainUpdate() {
+        compare(false);
+    }
+
+    @Test
+    public void testAdaGradUpdate() {
+        compare(true);
+    }
+
+    @Test
+    public void testForward() {
+        LookupLayer layer = new LookupLayer(EMBEDDING, VOCABULARY, 3);
+        layer.randomize(random, -1.0, 1.0);
+        layer.input = new int[]{7, -1, 7};
+        layer.forward();
+        for (int j = 0; j < EMBEDDING; j++) {
+            assertEquals(layer.table[7 * EMBEDDING + j], layer.output[j], 0.0);
+            assertEquals(0.0, layer.output[EMBEDDING + j], 0.0);
+            assertEquals(layer.table[7 * EMBEDDING + j], layer.output[2 * EMBEDDING + j], 0.0);
+        }
+    }
+
+    private void compare(boolean adaGrad) {
+        int[] lengths = {3, 20, 400, 5, 900, 1};
+        for (int length : lengths) {
+            LookupLayer layer = new LookupLayer(EMBEDDING, VOCABULARY, length);
+            layer.randomize(random, -1.0, 1.0);
+            double[] table = layer.table.clone();
+            double[] adaLR = layer.adaLR.clone();
+
+            for (int pass = 0; pass < 3; pass++) {
+                //Repeated words, unknown words and, in the long inputs, hundreds of distinct words
+                for (int i = 0; i < length; i++) {
+                    layer.input[i] = random.nextInt(10) == 0 ? -1 : random.nextInt(Math.min(VOCABULARY, 2 * length));
+                }
+                for (int i = 0; i < layer.outputG.length; i++) {
+                    layer.outputG[i] = random.nextGaussian();
+                }
+
+                Map<Integer, double[]> gradients = new HashMap<>();
+                for (int i = 0; i < length; i++) {
+                    int id = layer.input[i];
+                    if (id < 0) {
+                        continue;
+                    }
+                    double[] gradient = gradients.computeIfAbsent(id, k -> new double[EMBEDDING]);
+                    for (int j = 0; j < EMBEDDING; j++) {
+                        gradient[j] += layer.outputG[i * EMBEDDING + j];
+                    }
+                }
+                for (Map.Entry<Integer, double[]> entry : gradients.entrySet()) {
+                    int offset = entry.getKey() * EMBEDDING;
+                    double[] gradient = entry.getValue();
+                    for (int j = 0; j < EMBEDDING; j++) {
+                        if (adaGrad) {
+                            adaLR[offset + j] += (gradient[j] / 2) * (gradient[j] / 2);
+                            table[offset + j] += 0.1 * gradient[j] / (2 * Math.sqrt(adaLR[offset + j]));
+                        } else {
+                            table[offset + j] += 0.1 * gradient[j];
+                        }
+                    }
+                }
+
+                layer.backward();
+                if (adaGrad) {
+                    layer.updateAdaGrad(0.1, 2);
+                } else {
+                    layer.update(0.1);
+                }
+                layer.clearGrad();
+
+                assertArrayEquals("table, " + length + " words, pass " + pass, table, layer.table, EPSILON);
+                assertArrayEquals("adaLR, " + length + " words, pass " + pass, adaLR, layer.adaLR, EPSILON);
+                for (double gradient : layer.outputG) {
+                    assertEquals(0.0, gradient, 0.0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package eu.fbk.hlt.sentiment.nn.duyu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the register-blocked kernels with the plain loops on shapes that are not multiples of the block,
+ *  with the row stride larger than the number of the columns used
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class MathOpTest {
+    private static final double EPSILON = 1e-12;
+    private static final int[] SIZES = {1, 3, 4, 5, 8, 13};
+    private static final int PADDING = 3;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testAxpb() {
+        for (int rows : SIZES) {
+            for (int cols : SIZES) {
+                int stride = cols + PADDING;
+                double[] A = vector(rows * stride);
+                double[] x = vector(cols);
+                double[] b = vector(rows);
+                double[] expected = new double[rows];
+                for (int i = 0; i < rows; i++) {
+                    expected[i] = b[i];
+                    for (int j = 0; j < cols; j++) {
+                        expected[i] += A[i * stride + j] * x[j];
+                    }
+                }
+                double[] actual = vector(rows);
+                MathOp.Axpb(A, stride, x, b, actual);
+                assertArrayEquals(rows + "x" + cols, expected, actual, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testAxpy() {
+        for (int rows : SIZES) {
+            for (int cols : SIZES) {
+                int stride = cols + PADDING;
+                double[] A = vector(rows * stride);
+                double[] x = vector(cols);
+                double[] actual = vector(rows);
+                double[] expected = actual.clone();
+                for (int i = 0; i < rows; i++) {
+                    for (int j = 0; j < cols; j++) {
+                        expected[i] += A[i * stride + j] * x[j];
+                    }
+                }
+                MathOp.Axpy(A, stride, x, actual);
+                assertArrayEquals(rows + "x" + cols, expected, actual, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testXdotA() {
+        for (int rows : SIZES) {
+            for (int cols : SIZES) {
+                int stride = cols + PADDING;
+                double[] A = vector(rows * stride);
+                double[] x = vector(rows);
+                double[] b = vector(cols);
+                double[] expected = new double[cols];
+                for (int j = 0; j < cols; j++) {
+                    for (int i = 0; i < rows; i++) {
+                        expected[j] += x[i] * A[i * stride + j];
+                    }
+                }
+                double[] actual = vector(cols);
+                MathOp.xdotA(x, A, stride, actual);
+                assertArrayEquals(rows + "x" + cols, expected, actual, EPSILON);
+
+                for (int j = 0; j < cols; j++) {
+                    expected[j] += b[j];
+                }
+                MathOp.xDotApb(x, A, stride, b, actual);
+                assertArrayEquals(rows + "x" + cols + " with bias", expected, actual, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testOuterProduct() {
+        for (int rows : SIZES) {
+            for (int cols : SIZES) {
+                int stride = cols + PADDING;
+                double[] actual = vector(rows * stride);
+                double[] expected = actual.clone();
+                double[] x = vector(rows);
+                double[] y = vector(cols);
+                for (int i = 0; i < rows; i++) {
+                    for (int j = 0; j < cols; j++) {
+                        expected[i * stride + j] += x[i] * y[j];
+                    }
+                }
+                MathOp.A_add_xTmulty(x, y, actual, stride);
+                //The padding is left untouched as well
+                assertArrayEquals(rows + "x" + cols, expected, actual, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testDotProduct() {
+        for (int length : SIZES) {
+            double[] x = vector(length);
+            double[] y = vector(length);
+            double expected = 0.0;
+            for (int i = 0; i < length; i++) {
+                expected += x[i] * y[i];
+            }
+            assertEquals(String.valueOf(length), expected, MathOp.dotProduct(x, y), EPSILON);
+        }
+        assertEquals(0.0, MathOp.dotProduct(new double[0], new double[0]), 0.0);
+    }
+
+    private double[] vector(int length) {
+        double[] vector = new double[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = random.nextGaussian();
+        }
+        return vector;
+    }
+}
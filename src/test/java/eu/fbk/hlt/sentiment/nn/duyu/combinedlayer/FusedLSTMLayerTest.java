@@ -0,0 +1,83 @@
+package eu.fbk.hlt.sentiment.nn.duyu.combinedlayer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fused layer should compute the same function as the SimplifiedLSTMLayer it was copied from
+ *  and stay in sync with it through the training (both with the plain updates and with AdaGrad)
+ *
+ * @author Yaroslav Nechaev (remper@me.com)
+ */
+public class FusedLSTMLayerTest {
+    private static final double EPSILON = 1e-12;
+    private static final int HIDDEN = 20;
+    private static final int STEPS = 10;
+
+    @Test
+    public void testSingleExample() throws Exception {
+        compare(1);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        compare(4);
+    }
+
+    private void compare(int batchSize) throws Exception {
+        Random random = new Random(batchSize);
+        SimplifiedLSTMLayer reference = new SimplifiedLSTMLayer(HIDDEN, batchSize);
+        reference.randomize(new Random(42), -0.1, 0.1);
+        FusedLSTMLayer fused = FusedLSTMLayer.from(reference);
+
+        for (int step = 0; step < STEPS; step++) {
+            for (int id = 0; id < 2; id++) {
+                double[] expected = (double[]) reference.getInput(id);
+                double[] actual = (double[]) fused.getInput(id);
+                assertEquals(expected.length, actual.length);
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = actual[i] = random.nextGaussian();
+                }
+            }
+            reference.forward();
+            fused.forward();
+            assertArrayEquals("output", reference.output, fused.output, EPSILON);
+
+            for (int i = 0; i < reference.outputG.length; i++) {
+                reference.outputG[i] = fused.outputG[i] = random.nextGaussian();
+            }
+            reference.backward();
+            fused.backward();
+            for (int id = 0; id < 2; id++) {
+                assertArrayEquals("inputG " + id, (double[]) reference.getInputG(id), (double[]) fused.getInputG(id), EPSILON);
+            }
+
+            if (step % 2 == 0) {
+                reference.update(0.05);
+                fused.update(0.05);
+            } else {
+                reference.updateAdaGrad(0.05, batchSize);
+                fused.updateAdaGrad(0.05, batchSize);
+            }
+            reference.clearGrad();
+            fused.clearGrad();
+
+            FusedLSTMLayer updated = FusedLSTMLayer.from(reference);
+            assertArrayEquals("W", updated.gates.W, fused.gates.W, EPSILON);
+            assertArrayEquals("b", updated.gates.b, fused.gates.b, EPSILON);
+            assertArrayEquals("WAdaLR", updated.gates.WAdaLR, fused.gates.WAdaLR, EPSILON);
+        }
+    }
+
+    @Test
+    public void testTiedClone() throws Exception {
+        FusedLSTMLayer layer = new FusedLSTMLayer(HIDDEN, 2);
+        layer.randomize(new Random(42), -0.1, 0.1);
+        FusedLSTMLayer clone = (FusedLSTMLayer) layer.cloneWithTiedParams();
+        assertSame(layer.gates.W, clone.gates.W);
+        assertNotSame(layer.output, clone.output);
+    }
+}